@@ -0,0 +1,59 @@
+-- Change notifications for the video server (see db.listen).
+--
+-- The video server LISTENs on two channels:
+--   video_camera       payload: name of a camera in camera_view
+--   video_decoder_map  payload: name of a decoder in video.decoder_map
+-- A notification without a payload makes the server reload everything
+-- on that channel.  Payloads need PostgreSQL 9.0 or later.
+--
+-- camera_view is assumed to read from iris._camera; adjust the table
+-- names below if the view is defined differently here.
+
+CREATE OR REPLACE FUNCTION video.camera_notify() RETURNS TRIGGER AS $$
+BEGIN
+	IF (TG_OP = 'DELETE') THEN
+		PERFORM pg_notify('video_camera', OLD.name);
+	ELSE
+		PERFORM pg_notify('video_camera', NEW.name);
+		IF (TG_OP = 'UPDATE' AND NEW.name <> OLD.name) THEN
+			PERFORM pg_notify('video_camera', OLD.name);
+		END IF;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS camera_notify_trig ON iris._camera;
+CREATE TRIGGER camera_notify_trig
+	AFTER INSERT OR UPDATE OR DELETE ON iris._camera
+	FOR EACH ROW EXECUTE PROCEDURE video.camera_notify();
+
+-- Other tables joined into camera_view (such as encoder types) can
+-- trigger a full reload with an empty payload:
+--
+-- CREATE OR REPLACE FUNCTION video.camera_reload() RETURNS TRIGGER AS $$
+-- BEGIN
+-- 	NOTIFY video_camera;
+-- 	RETURN NULL;
+-- END;
+-- $$ LANGUAGE plpgsql;
+--
+-- CREATE TRIGGER camera_reload_trig
+-- 	AFTER INSERT OR UPDATE OR DELETE ON iris.encoder_type
+-- 	FOR EACH STATEMENT EXECUTE PROCEDURE video.camera_reload();
+
+CREATE OR REPLACE FUNCTION video.decoder_map_notify() RETURNS TRIGGER AS $$
+BEGIN
+	IF (TG_OP = 'DELETE') THEN
+		PERFORM pg_notify('video_decoder_map', OLD.did);
+	ELSE
+		PERFORM pg_notify('video_decoder_map', NEW.did);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS decoder_map_notify_trig ON video.decoder_map;
+CREATE TRIGGER decoder_map_notify_trig
+	AFTER INSERT OR UPDATE OR DELETE ON video.decoder_map
+	FOR EACH ROW EXECUTE PROCEDURE video.decoder_map_notify();
@@ -19,11 +19,13 @@
 
 package us.mn.state.dot.video;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.URL;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -34,7 +36,11 @@ import java.util.logging.Logger;
 public abstract class AbstractDataSource extends VideoThread implements DataSource {
 
 	/** List of DataSinks for this stream. */
-	private ArrayList<DataSink> sinks = new ArrayList<DataSink>();
+	private final CopyOnWriteArrayList<DataSink> sinks =
+		new CopyOnWriteArrayList<DataSink>();
+
+	/** Ring of frames read by the sinks */
+	private final FrameRing frames = new FrameRing();
 
 	protected final Logger logger;
 	
@@ -48,6 +54,29 @@ public abstract class AbstractDataSource extends VideoThread implements DataSour
 	protected final String user;
 	
 	protected final String password;
+
+	/** Key of this source in the source registry */
+	private volatile String sourceKey = null;
+
+	/** Group resource serial held while reading from the encoder, or
+	 * -1 if none */
+	private final AtomicInteger serial = new AtomicInteger(-1);
+
+	/** Group manager of the held resource */
+	private volatile GroupManager groupManager = null;
+
+	/** Number of requests handed this source by the factory, or -1 once
+	 * the last of them has given it up before it was started */
+	private final AtomicInteger claims = new AtomicInteger(0);
+
+	/** Latest frame scaled down to each image size (guarded by itself) */
+	private final Frame[] scaled = new Frame[ImageSize.values().length];
+
+	/** Sequence of the frame each scaled frame was made from */
+	private final long[] scaledSeq = new long[ImageSize.values().length];
+
+	/** Set once the source has terminated (guarded by scaled) */
+	private boolean scaledClosed = false;
 	
 	/** Constructor for the ImageFactory. */
 	protected AbstractDataSource(Client c,
@@ -76,22 +105,56 @@ public abstract class AbstractDataSource extends VideoThread implements DataSour
 		return sinks.size() + " listeners.";
 	}
 
-	public synchronized DataSink[] getListeners(){
+	public DataSink[] getListeners(){
 		return (DataSink[])sinks.toArray(new DataSink[0]);
 	}
+
+	public final FrameRing getFrameRing(){
+		return frames;
+	}
 	
-	/** Notify listeners that an image was created */
-	protected synchronized void notifySinks(byte[] data) {
-		DataSink sink;
-		for (Iterator i = sinks.listIterator(); i.hasNext();) {
-			sink = (DataSink) i.next();
+	/** Notify listeners that an image was created.  The image is
+	 * published to the frame ring; sinks pick it up on their own. */
+	protected void notifySinks(byte[] data) {
+		Frame f = frames.put(data);
+		if(logger.isLoggable(Level.FINE)) {
 			logger.fine(this.getClass().getSimpleName() +
-					" is Notifying " + sink.toString() +
-					": image size is " + data.length);
-			sink.flush(data);
+				" published frame " + f.getSequence() +
+				" to " + sinks.size() + " sinks" +
+				": image size is " + data.length);
 		}
 	}
 
+	/** Notify listeners that an image was read into a region of a
+	 * buffer.  The buffer may be reused once this returns. */
+	protected void notifySinks(byte[] buf, int off, int len) {
+		Frame f = frames.put(buf, off, len);
+		if(logger.isLoggable(Level.FINE)) {
+			logger.fine(this.getClass().getSimpleName() +
+				" published frame " + f.getSequence() +
+				" to " + sinks.size() + " sinks" +
+				": image size is " + len);
+		}
+	}
+
+	/** Notify listeners that an image was read into a frame buffer.
+	 * The frame ring takes over the caller's reference to it. */
+	protected void notifySinks(FrameBuffer fb) {
+		Frame f = frames.put(fb);
+		if(logger.isLoggable(Level.FINE)) {
+			logger.fine(this.getClass().getSimpleName() +
+				" published frame " + f.getSequence() +
+				" to " + sinks.size() + " sinks" +
+				": image size is " + f.getDataLength());
+		}
+	}
+
+	/** Re-publish the latest image, to keep streams from timing out.
+	 * @return false if no image has been published yet. */
+	protected boolean notifySinksAgain() {
+		return frames.repeat() != null;
+	}
+
 	/** Add a DataSink to this Image Factory. */
 	public synchronized void connectSink(DataSink sink) {
 		if(sink != null){
@@ -104,15 +167,125 @@ public abstract class AbstractDataSource extends VideoThread implements DataSour
 	public synchronized void disconnectSink(DataSink sink) {
 		logger.info("Removing DataSink: " + sink.getClass().getSimpleName());
 		sinks.remove(sink);
-		if(sinks.size()==0){
-			logger.fine(this.toString() + " has no sinks, stopping now.");
-			halt();
+		// a source not yet started may still be claimed by another
+		// request; discard() drops it if not
+		if(sinks.size()==0 && isAlive()){
+			noSinks();
 		}
 	}
 
+	/** Called when the last sink has disconnected */
+	protected void noSinks(){
+		logger.fine(this.toString() + " has no sinks, stopping now.");
+		halt();
+	}
+
 	protected synchronized void removeSinks(){
 	 	sinks.clear();
 		halt();	
+		// return frame buffers to the pool
+		frames.clear();
+		DataSourceFactory.removeSource(this);
+		releaseResource();
+	}
+
+	/** Take a group resource for reading from the encoder, waiting in
+	 * the group's queue if it has one.
+	 * @return false if the camera's group is full. */
+	final boolean requestResource(GroupManager gm){
+		int s = gm.awaitResource(client.getCameraName());
+		if(s < 0)
+			return false;
+		groupManager = gm;
+		serial.set(s);
+		return true;
+	}
+
+	/** Give back the group resource, if held */
+	final void releaseResource(){
+		int s = serial.getAndSet(-1);
+		if(s >= 0)
+			groupManager.releaseResource(s);
+	}
+
+	/** Give back the group resource when the task ends */
+	protected void terminated(){
+		releaseResource();
+		synchronized(scaled){
+			scaledClosed = true;
+			for(int i = 0; i < scaled.length; i++){
+				if(scaled[i] != null){
+					scaled[i].release();
+					scaled[i] = null;
+				}
+			}
+		}
+	}
+
+	/** Scale a frame of this source down to an image size.  The result
+	 * is kept until the source publishes a newer frame, so requests for
+	 * the same frame scale it only once.
+	 * @param f A frame from this source, held by the caller.
+	 * @return The scaled frame, which the caller must release. */
+	final Frame getScaledFrame(Frame f, ImageSize size) throws IOException{
+		int i = size.ordinal();
+		synchronized(scaled){
+			Frame sf = scaled[i];
+			if(sf != null && scaledSeq[i] == f.getSequence() &&
+			   sf.retain())
+				return sf;
+			sf = JPEGScaler.scale(f, size);
+			if(scaledClosed)
+				return sf;
+			sf.retain();
+			if(scaled[i] != null)
+				scaled[i].release();
+			scaled[i] = sf;
+			scaledSeq[i] = f.getSequence();
+			return sf;
+		}
+	}
+
+	/** Get the key of this source in the source registry */
+	final String getSourceKey(){
+		return sourceKey;
+	}
+
+	/** Set the key of this source in the source registry */
+	final void setSourceKey(String k){
+		sourceKey = k;
+	}
+
+	/** Count a request handed this source.
+	 * @return false if the source has already been given up. */
+	final boolean claim(){
+		while(true){
+			int n = claims.get();
+			if(n < 0)
+				return false;
+			if(claims.compareAndSet(n, n + 1))
+				return true;
+		}
+	}
+
+	/** Give up a claim of a request which could not use the source.
+	 * @return true if no other request holds a claim; the source
+	 * can then no longer be claimed. */
+	final boolean unclaim(){
+		while(true){
+			int n = claims.get();
+			if(n <= 0)
+				return false;
+			int m = (n == 1) ? -1 : n - 1;
+			if(claims.compareAndSet(n, m))
+				return m < 0;
+		}
+	}
+
+	/** Check if this source can still be shared by new sinks: it has
+	 * not been halted and its task has not exited. */
+	public boolean isUsable(){
+		return !isDone() && !isTerminated();
 	}
 	
 	public final Client getClient() {
@@ -0,0 +1,225 @@
+/*
+ * Project: Video
+ * Copyright (C) 2015  AHMCT, University of California
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package us.mn.state.dot.video;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/**
+ * An AsyncMJPEGWriter sends an MJPEG stream to a client using
+ * non-blocking servlet output.  Unlike MJPEGWriter, it does not hold a
+ * request thread; it is ticked by the MJPEGPump, and a body part is only
+ * written when the container reports the output ready for more data.
+ */
+public class AsyncMJPEGWriter implements DataSink, WriteListener,
+	AsyncListener
+{
+	private final Client client;
+
+	private final Logger logger;
+
+	private final DataSource source;
+
+	/** The ring of frames published by the source */
+	private final FrameRing frames;
+
+	/** The async context of the request */
+	private final AsyncContext context;
+
+	/** Minimum time (ms) between ticks */
+	static private final int MIN_PERIOD = 10;
+
+	/** Time (ms) between ticks */
+	private final int period;
+
+	/** The non-blocking output stream */
+	private ServletOutputStream out;
+
+	/** The scheduled pump tick */
+	private ScheduledFuture<?> tick;
+
+	/** Sequence number of the last frame written */
+	private long lastSeq = -1;
+
+	/** Picks the frames sent to the client */
+	private final FramePacer pacer;
+
+	/** Time the output was first found not ready, or 0 */
+	private long stallStart = 0;
+
+	/** Set if the output stalled since the last write */
+	private boolean stalled = false;
+
+	private final long startTime = System.currentTimeMillis();
+
+	/** The time (in milliseconds) of the last data packet */
+	private long lastPacket = startTime;
+
+	private boolean done = false;
+
+	private StreamStatus status = StreamStatus.INITIALIZED;
+
+	/** Create a new async writer */
+	public AsyncMJPEGWriter(Client c, AsyncContext ctx, DataSource source,
+		Logger l, int maxRate)
+	{
+		client = c;
+		context = ctx;
+		logger = l;
+		int rate = Math.max(1, Math.min(maxRate, c.getRate()));
+		pacer = new FramePacer(rate);
+		// tick faster than the rate; the pacer picks the frames
+		period = Math.max(MIN_PERIOD, 1000 / (2 * rate));
+		this.source = source;
+		frames = source.getFrameRing();
+	}
+
+	public StreamStatus getStatus(){
+		return status;
+	}
+
+	public Client getClient(){
+		return client;
+	}
+
+	public String toString(){
+		return this.getClass().getSimpleName() + " " + client.toString();
+	}
+
+	/** Start streaming on the given pump */
+	public synchronized void start(MJPEGPump pump) throws IOException {
+		status = StreamStatus.STREAMING;
+		context.setTimeout(MJPEGWriter.MAX_DURATION +
+			MJPEGWriter.DATA_TIMEOUT);
+		context.addListener(this);
+		source.connectSink(this);
+		out = context.getResponse().getOutputStream();
+		out.setWriteListener(this);
+		tick = pump.schedule(this, period);
+	}
+
+	/** Undo a start which failed part way: disconnect from the source
+	 * and complete the request */
+	public synchronized void abort() {
+		finish(StreamStatus.INTERRUPTED);
+	}
+
+	/** Write the newest frame, if the output can take it */
+	synchronized void pump() {
+		if(done)
+			return;
+		long now = System.currentTimeMillis();
+		if((now - startTime) > MJPEGWriter.MAX_DURATION){
+			finish(StreamStatus.STALE);
+			return;
+		}
+		if((now - lastPacket) > MJPEGWriter.DATA_TIMEOUT){
+			finish(StreamStatus.RECEIVE_TIMEOUT);
+			return;
+		}
+		// the container calls onWritePossible when ready again
+		if(out == null)
+			return;
+		if(!out.isReady()){
+			stalled = true;
+			if(stallStart == 0)
+				stallStart = now;
+			else if(now - stallStart > MJPEGWriter.WRITE_TIMEOUT)
+				finish(StreamStatus.SEND_TIMEOUT);
+			return;
+		}
+		stallStart = 0;
+		Frame f = frames.acquireLatest();
+		if(f == null)
+			return;
+		try{
+			if(f.getSequence() <= lastSeq || f.getDataLength() == 0)
+				return;
+			lastSeq = f.getSequence();
+			if(!pacer.admit(f))
+				return;
+			// non-blocking output allows one write per isReady
+			f.writePart(out);
+			lastPacket = now;
+			pacer.wrote(stalled);
+			stalled = false;
+		}catch(IOException e){
+			finish(StreamStatus.CLIENT_DISCONNECTED);
+		}finally{
+			f.release();
+		}
+	}
+
+	/** Called by the container when output is ready again */
+	public void onWritePossible() {
+		pump();
+	}
+
+	/** Called by the container when a write fails */
+	public synchronized void onError(Throwable t) {
+		logger.info("IOE: " + this.toString() + " is closing.");
+		finish(StreamStatus.CLIENT_DISCONNECTED);
+	}
+
+	/** Stop streaming and complete the request */
+	private void finish(StreamStatus ss) {
+		if(done)
+			return;
+		done = true;
+		status = ss;
+		logger.fine(this.toString() + " terminated: " + ss.name());
+		if(tick != null)
+			tick.cancel(false);
+		source.disconnectSink(this);
+		try{
+			context.complete();
+		}catch(IllegalStateException e){
+			// already completed by the container
+		}
+	}
+
+	public void onComplete(AsyncEvent e) {
+		synchronized(this) {
+			if(!done)
+				finish(StreamStatus.FINISHED);
+		}
+	}
+
+	public void onTimeout(AsyncEvent e) {
+		synchronized(this) {
+			finish(StreamStatus.STALE);
+		}
+	}
+
+	public void onError(AsyncEvent e) {
+		synchronized(this) {
+			finish(StreamStatus.CLIENT_DISCONNECTED);
+		}
+	}
+
+	public void onStartAsync(AsyncEvent e) {
+	}
+}
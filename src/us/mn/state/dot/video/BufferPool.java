@@ -0,0 +1,112 @@
+/*
+ * Project: Video
+ * Copyright (C) 2015  AHMCT, University of California
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package us.mn.state.dot.video;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A BufferPool recycles byte arrays in power-of-two size classes, so
+ * that frame-sized buffers are reused instead of being allocated for
+ * every image.  Each size class retains a bounded number of free
+ * buffers; requests too large for any class are simply allocated.
+ */
+public class BufferPool {
+
+	/** Smallest size class (16 KB) as a power of two */
+	static private final int MIN_SHIFT = 14;
+
+	/** Largest size class (16 MB) as a power of two */
+	static private final int MAX_SHIFT = 24;
+
+	/** Free buffers for each size class */
+	private final ConcurrentLinkedQueue<byte[]>[] free;
+
+	/** Number of free buffers in each size class */
+	private final AtomicInteger[] count;
+
+	/** Maximum number of free buffers retained per size class */
+	private final int[] limit;
+
+	/** Number of buffers handed out from the free lists */
+	private final AtomicLong reused = new AtomicLong();
+
+	/** Number of buffers newly allocated */
+	private final AtomicLong allocated = new AtomicLong();
+
+	/** Create a pool retaining up to maxBytes of free buffers in each
+	 * size class (and at least two buffers). */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public BufferPool(int maxBytes) {
+		int n = MAX_SHIFT - MIN_SHIFT + 1;
+		free = new ConcurrentLinkedQueue[n];
+		count = new AtomicInteger[n];
+		limit = new int[n];
+		for(int i = 0; i < n; i++) {
+			free[i] = new ConcurrentLinkedQueue<byte[]>();
+			count[i] = new AtomicInteger();
+			limit[i] = Math.max(2, maxBytes >> (MIN_SHIFT + i));
+		}
+	}
+
+	/** Get the size class for a requested size, or -1 if too large */
+	static private int sizeClass(int size) {
+		for(int i = MIN_SHIFT; i <= MAX_SHIFT; i++) {
+			if(size <= (1 << i))
+				return i - MIN_SHIFT;
+		}
+		return -1;
+	}
+
+	/** Get a buffer of at least the given size */
+	public byte[] acquire(int size) {
+		int c = sizeClass(size);
+		if(c < 0) {
+			allocated.incrementAndGet();
+			return new byte[size];
+		}
+		byte[] b = free[c].poll();
+		if(b != null) {
+			count[c].decrementAndGet();
+			reused.incrementAndGet();
+			return b;
+		}
+		allocated.incrementAndGet();
+		return new byte[1 << (c + MIN_SHIFT)];
+	}
+
+	/** Return a buffer to the pool.  The caller must not use it again. */
+	public void release(byte[] b) {
+		int c = sizeClass(b.length);
+		if(c < 0 || b.length != (1 << (c + MIN_SHIFT)))
+			return;
+		if(count[c].incrementAndGet() > limit[c]) {
+			count[c].decrementAndGet();
+			return;
+		}
+		free[c].offer(b);
+	}
+
+	/** Get a status string for logging */
+	public String getStatus() {
+		return "BufferPool: " + allocated.get() + " allocated, " +
+			reused.get() + " reused.";
+	}
+}
@@ -18,45 +18,104 @@
  */
 package us.mn.state.dot.video;
 
-import java.awt.Dimension;
-import java.awt.Graphics;
-import java.awt.Image;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
 import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
-import javax.imageio.ImageIO;
 import javax.xml.ws.http.HTTPException;
 
 
 /**
  * An object that can be placed in the stills cache.  This class
  * also makes sure that the image data is not expired before returning
- * it to calling classes.
+ * it to calling classes.  Only one fetch is in flight at a time; other
+ * callers wait for it, or get the previous image right away if it
+ * is still within the grace period.
  *
  */
 public class CacheEntry {
 
-	private long imageTime = System.currentTimeMillis();
-	private byte[] image = null;
+	private volatile long imageTime = System.currentTimeMillis();
+	/** The cached image, holding a reference */
+	private volatile Frame image = null;
 	private final URL imageURL;
 	private final String user;
 	private final String pass;
-	private int statusCode = -1;
+	private volatile int statusCode = -1;
 	private final ImageSize size;
+
+	/** Camera name, for group admission (null if not needed) */
+	private final String camera;
 	
 	/** Length of time that an image should be cached */
 	protected final long expirationAge;
+
+	/** Length of time past expiration that an image may still be
+	 * served while a new one is fetched */
+	protected final long graceAge;
+
+	/** The cache holding this entry */
+	private final ImageCache cache;
+
+	/** Time of the last request for this entry */
+	private volatile long lastAccess = System.currentTimeMillis();
+
+	/** Set once this entry has been removed from the cache */
+	private boolean evicted = false;
+
+	/** Bytes held by the cached image */
+	private volatile int residentBytes = 0;
+
+	/** The fetch in flight, if any */
+	private final AtomicReference<Fetch> fetch =
+		new AtomicReference<Fetch>();
+
+	/** Number of requests since the refresher last checked */
+	private final AtomicInteger requests = new AtomicInteger();
+
+	/** Smoothed request rate (per second), kept by the refresher */
+	private double requestRate = 0;
+
+	/** A fetch of a new image, which clears itself when done */
+	private final class Fetch extends FutureTask<Object> {
+		/** Encoder permit held by the fetch, if any */
+		private final Semaphore permit;
+		/** Fetch for a waiting request: it may queue for a group
+		 * resource; background fetches never wait */
+		Fetch(Semaphore p, final boolean wait) {
+			super(new Callable<Object>() {
+				public Object call() throws Exception {
+					fetchImage(wait);
+					return null;
+				}
+			});
+			permit = p;
+		}
+		protected void done() {
+			fetch.compareAndSet(this, null);
+			if(permit != null)
+				permit.release();
+		}
+	}
 	
-	public CacheEntry(URL url, String user, String pass, long age, ImageSize s){
+	public CacheEntry(URL url, String user, String pass, long age,
+		long grace, ImageSize s, String cam, ImageCache ic)
+	{
 		this.imageURL = url;
+		this.camera = cam;
 		this.user = user;
 		this.pass = pass;
 		this.expirationAge = age;
+		this.graceAge = grace;
 		this.size = s;
-		imageTime = imageTime - (2 * expirationAge); //initially expired
+		this.cache = ic;
+		imageTime = imageTime - (2 * expirationAge) - graceAge; //initially expired
 	}
 
     /**
@@ -72,45 +131,191 @@ public class CacheEntry {
 		return (getAge() > expirationAge);
 	}
 
-	private void setImage(byte[] i){
-		imageTime = System.currentTimeMillis();
-		image = scale(i);
+	/** Check if the image is expired, but may still be served */
+	private boolean isStale(){
+		return image != null && getAge() <= expirationAge + graceAge;
+	}
+
+	/** Get the host and port of the encoder for this entry */
+	String getEncoderKey(){
+		return imageURL.getHost() + ":" + imageURL.getPort();
+	}
+
+	/** Take the number of requests since the last call */
+	int takeRequests(){
+		return requests.getAndSet(0);
+	}
+
+	double getRequestRate(){
+		return requestRate;
+	}
+
+	void setRequestRate(double r){
+		requestRate = r;
+	}
+
+	/** Start a background fetch if the image expires within a time.
+	 * @param lead Time (ms) before expiration to refresh.
+	 * @param permit Encoder permit, released when the fetch is done.
+	 * @return true if a fetch was started. */
+	boolean prefetch(long lead, Semaphore permit){
+		if(image == null || getAge() < expirationAge - lead)
+			return false;
+		if(fetch.get() != null || !permit.tryAcquire())
+			return false;
+		Fetch f = new Fetch(permit, false);
+		if(!fetch.compareAndSet(null, f)){
+			permit.release();
+			return false;
+		}
+		refresh(f);
+		return true;
+	}
+
+	/** Get the time of the last request for this entry */
+	public long getLastAccess(){
+		return lastAccess;
+	}
+
+	/** Check if this entry has been removed from the cache */
+	public synchronized boolean isEvicted(){
+		return evicted;
+	}
+
+	/** Get the number of bytes held by the cached image */
+	public int getResidentBytes(){
+		return residentBytes;
+	}
+
+	private void setImage(Frame f){
+		Frame n = scale(f);
+		Frame old;
+		synchronized(this){
+			if(evicted){
+				old = n;
+			}else{
+				old = image;
+				image = n;
+				setResidentBytes(n.getPart().length);
+			}
+			imageTime = System.currentTimeMillis();
+		}
+		if(old != null)
+			old.release();
+	}
+
+	/** Drop the cached image after this entry has been evicted */
+	public synchronized void dispose(){
+		evicted = true;
+		Frame old = image;
+		image = null;
+		imageTime = System.currentTimeMillis() - (2 * expirationAge) -
+			graceAge;
+		setResidentBytes(0);
+		if(old != null)
+			old.release();
 	}
 
-	private byte[] scale(byte[] data){
-		if(data == null) return data;
-		if(data.length < size.getMaxBytes()) return data;
+	/** Update the resident byte count of this entry and the cache */
+	private void setResidentBytes(int n){
+		cache.addResidentBytes(n - residentBytes);
+		residentBytes = n;
+	}
+
+	/** Scale an image down to the entry size, if it is too large.
+	 * @param f The image; its reference passes to the returned frame.
+	 * @return The (possibly new) frame, holding a reference. */
+	private Frame scale(Frame f){
+		if(f.getDataLength() < size.getMaxBytes()) return f;
 		try{
-			InputStream in = new ByteArrayInputStream(data);
-			BufferedImage bi = ImageIO.read(in);
-			Dimension d = size.getDimension();
-			Image i = bi.getScaledInstance(d.width, d.height, Image.SCALE_FAST);
-			BufferedImage newBi = new BufferedImage(d.width, d.height, BufferedImage.TYPE_INT_RGB);
-			Graphics bg = newBi.getGraphics();
-			bg.drawImage(i, 0, 0, null);
-			bg.dispose();
-			ByteArrayOutputStream out = new ByteArrayOutputStream();
-			ImageIO.write(newBi, "jpg", out);
-			out.flush();
-			return out.toByteArray();
+			Frame scaled = JPEGScaler.scale(f, size);
+			f.release();
+			return scaled;
 		}catch(Exception e){
-			return data;
+			return f;
 		}
 	}
 	
-	public synchronized byte[] getImage() throws HTTPException, VideoException{
-		if(isExpired()){
-			fetchImage();
+	/** Get the image, fetching a new one if expired.
+	 * @return The image, which the caller must release, or null. */
+	public Frame getFrame() throws HTTPException, VideoException{
+		lastAccess = System.currentTimeMillis();
+		requests.incrementAndGet();
+		boolean hit = true;
+		while(isExpired()){
+			Fetch f = fetch.get();
+			if(f == null){
+				boolean stale = isStale();
+				f = new Fetch(null, !stale);
+				if(!fetch.compareAndSet(null, f))
+					continue;
+				if(stale)
+					refresh(f);
+				else
+					f.run();
+			}
+			if(!isStale()){
+				hit = false;
+				cache.recordLookup(false);
+				await(f);
+			}
+			break;
+		}
+		if(hit)
+			cache.recordLookup(true);
+		return currentFrame();
+	}
+
+	/** Run a fetch in the background */
+	private void refresh(Fetch f){
+		try{
+			cache.execute(f);
+		}catch(RejectedExecutionException e){
+			// too busy; a later request will try again
+			f.cancel(false);
 		}
-		if(statusCode > 0 && statusCode != 200){
-			throw new HTTPException(statusCode);
+	}
+
+	/** Wait for a fetch to complete */
+	private void await(Fetch f) throws HTTPException, VideoException{
+		try{
+			f.get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new VideoException("Interrupted: " + imageURL);
+		}catch(CancellationException e){
+			throw new VideoException("Fetch cancelled: " + imageURL);
+		}catch(ExecutionException e){
+			Throwable t = e.getCause();
+			if(t instanceof HTTPException)
+				throw (HTTPException)t;
+			if(t instanceof VideoException)
+				throw (VideoException)t;
+			throw new VideoException(String.valueOf(t));
+		}
+	}
+
+	/** Get the current image, holding a reference */
+	private Frame currentFrame() throws HTTPException{
+		int sc = statusCode;
+		if(sc > 0 && sc != 200){
+			throw new HTTPException(sc);
 		}
-		return image;
+		Frame f = image;
+		// a failed retain means the image was just replaced
+		while(f != null && !f.retain())
+			f = image;
+		return f;
 	}
 
-	private void fetchImage() throws HTTPException, VideoException {
+	private void fetchImage(boolean wait) throws HTTPException,
+		VideoException
+	{
+		// a group resource is held only while the encoder is read; a
+		// full group fails this fetch without caching the failure
+		int serial = cache.requestResource(camera, wait);
 		try{
-			setImage(ImageFactory.getImage(imageURL, user, pass));
+			setImage(ImageFactory.getFrame(imageURL, user, pass));
 			statusCode = 200;
 		}catch(HTTPException httpE){
 			statusCode = httpE.getStatusCode();
@@ -120,6 +325,8 @@ public class CacheEntry {
 			statusCode = -1;
 			imageTime = System.currentTimeMillis();
 			throw ve;
+		}finally{
+			cache.releaseResource(serial);
 		}
 	}
 }
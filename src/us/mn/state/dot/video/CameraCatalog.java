@@ -0,0 +1,106 @@
+/*
+ * Project: Video
+ * Copyright (C) 2015  AHMCT, University of California
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package us.mn.state.dot.video;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The CameraCatalog is an immutable snapshot of the camera view: the
+ * encoder and publish flag of every camera, loaded with one query.  A
+ * newer catalog replaces an older one as a whole, so lookups need no
+ * locking and never touch the database.
+ */
+public final class CameraCatalog {
+
+	/** Catalog with no cameras, used until the first load */
+	static public final CameraCatalog EMPTY =
+		new CameraCatalog(new HashMap<String, Camera>());
+
+	/** One row of the camera view */
+	static public final class Camera {
+
+		/** Camera name */
+		public final String name;
+
+		/** Encoder type (manufacturer) */
+		public final String encoderType;
+
+		/** Encoder host, with an optional port */
+		public final String encoderHost;
+
+		/** Encoder channel */
+		public final int channel;
+
+		/** Publish flag */
+		public final boolean published;
+
+		public Camera(String n, String t, String h, int ch, boolean p) {
+			name = n;
+			encoderType = t;
+			encoderHost = h;
+			channel = ch;
+			published = p;
+		}
+
+		/** Check if the encoder of another row is the same */
+		public boolean sameEncoder(Camera o) {
+			return o != null &&
+			       equal(encoderType, o.encoderType) &&
+			       equal(encoderHost, o.encoderHost) &&
+			       channel == o.channel;
+		}
+
+		static private boolean equal(String a, String b) {
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+
+	/** Cameras indexed by name */
+	private final Map<String, Camera> cameras;
+
+	/** Create a catalog from a copy of a camera map */
+	public CameraCatalog(Map<String, Camera> c) {
+		cameras = Collections.unmodifiableMap(
+			new HashMap<String, Camera>(c));
+	}
+
+	/** Get a camera, or null if it is not in the catalog */
+	public Camera getCamera(String name) {
+		return name != null ? cameras.get(name) : null;
+	}
+
+	/** Check if a camera is published */
+	public boolean isPublished(String name) {
+		Camera c = getCamera(name);
+		return c != null && c.published;
+	}
+
+	/** Get all cameras */
+	public Collection<Camera> getCameras() {
+		return cameras.values();
+	}
+
+	/** Get the number of cameras */
+	public int size() {
+		return cameras.size();
+	}
+}
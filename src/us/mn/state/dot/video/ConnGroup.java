@@ -21,7 +21,9 @@ package us.mn.state.dot.video;
 
 import java.lang.String;
 import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A class representing a Connection Group -- a group of cameras to which
@@ -37,6 +39,28 @@ public class ConnGroup {
 	private int connLimit = 0;
 	private final ArrayList<String> members = new ArrayList<String>();
 
+	// number of members with at least one active connection; changed
+	// by the GroupManager with this group locked
+	private final AtomicInteger active = new AtomicInteger();
+
+	// maximum number of waiting requests (0 = no queue)
+	private int queueLimit = 0;
+
+	// maximum time (ms) a request waits in the queue
+	private int queueWait = 10 * 1000;
+
+	// requests waiting for a connection, oldest first; guarded by this
+	final LinkedList<Waiter> waiters = new LinkedList<Waiter>();
+
+	// a request waiting for a connection to a camera
+	static final class Waiter {
+		final String cid;
+		boolean granted = false;
+		Waiter(String c) {
+			cid = c;
+		}
+	}
+
 	ConnGroup(String name) {
 		this.name = name;
 	}
@@ -61,6 +85,35 @@ public class ConnGroup {
 			connLimit = 0;
 	}
 
+	public int getQueueLimit() {
+		return queueLimit;
+	}
+
+	public void setQueueLimit(int l) {
+		queueLimit = Math.max(0, l);
+	}
+
+	public int getQueueWait() {
+		return queueWait;
+	}
+
+	public void setQueueWait(int w) {
+		queueWait = Math.max(0, w);
+	}
+
+	// number of requests waiting for a connection
+	public synchronized int getQueueLength() {
+		return waiters.size();
+	}
+
+	public int getActiveCount() {
+		return active.get();
+	}
+
+	void addActive(int n) {
+		active.addAndGet(n);
+	}
+
 	public String[] getMembers() {
 		return members.toArray(new String[0]);
 	}
@@ -1,7 +1,11 @@
 package us.mn.state.dot.video;
 
+/** A DataSink consumes the frames published by a DataSource.
+ * Sinks are registered with the source while they are active, and read
+ * frames from the source's FrameRing at their own pace.
+ */
 public interface DataSink {
 
-	/** Flush the data down the sink */
-	public void flush(byte[] data);
+	/** Get the client receiving frames from this sink */
+	public Client getClient();
 }
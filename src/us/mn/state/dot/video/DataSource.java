@@ -12,4 +12,7 @@ public interface DataSource {
 	/** Disconnect a DataSink */
 	public void disconnectSink(DataSink sink);
 
+	/** Get the ring of frames published by this source */
+	public FrameRing getFrameRing();
+
 }
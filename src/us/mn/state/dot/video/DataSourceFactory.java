@@ -19,20 +19,25 @@
 
 package us.mn.state.dot.video;
 
+import java.io.IOException;
 import java.net.URL;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.ws.http.HTTPException;
+
 import us.mn.state.dot.video.EncoderFactory;
 
 /**
  * The DataSourceFactory creates and maintains DataSources.
  * It is responsible for making sure that only one DataSource
  * object is created for each stream regardless of the number 
- * of clients requesting the stream.
+ * of clients requesting the stream.  Sources are kept in a concurrent
+ * registry keyed by camera and size (and district, for a proxy); looking up or creating a source
+ * takes no global lock, and a source removes itself when it stops.
  *
  * @author Timothy Johnson
  */
@@ -41,8 +46,8 @@ public class DataSourceFactory {
 	private ThreadMonitor monitor = null;
 	
 	/** Hash of video streams that are active. */
-	static final private HashMap<String, AbstractDataSource> sources =
-		new HashMap<String, AbstractDataSource>();
+	static final private ConcurrentHashMap<String, AbstractDataSource>
+		sources = new ConcurrentHashMap<String, AbstractDataSource>();
 
 	private final Logger logger;
 	
@@ -53,9 +58,22 @@ public class DataSourceFactory {
 	protected static final HashMap<District, URL> districtVideoURLs =
 		new HashMap<District, URL>();
 
+	/** Service session IDs for district upstream streams */
+	protected static final HashMap<District, Long> districtSessionIds =
+		new HashMap<District, Long>();
+
+	/** Default time (ms) to keep a proxy upstream with no viewers */
+	static private final long DEFAULT_PROXY_LINGER = 30 * 1000;
+
+	/** Time (ms) to keep a proxy upstream with no viewers */
+	private long proxyLinger = DEFAULT_PROXY_LINGER;
+
 	protected EncoderFactory encoderFactory;
+
+	/** Group manager admitting new encoder connections */
+	private final GroupManager groupManager;
 	
-	private static DataSourceFactory factory = null;
+	private static volatile DataSourceFactory factory = null;
 
 	public static synchronized DataSourceFactory create(Properties p, ThreadMonitor m){
 		if(factory == null){
@@ -68,6 +86,7 @@ public class DataSourceFactory {
 	private DataSourceFactory(Properties p, ThreadMonitor m) {
 		logger = Logger.getLogger(Constants.LOGGER_NAME);
 		monitor = m;
+		groupManager = GroupManager.getGroupManager(p);
 		proxy = new Boolean(p.getProperty("proxy", "false")).booleanValue();
 		if(proxy) {
 			for(District d : District.values()){
@@ -76,31 +95,93 @@ public class DataSourceFactory {
 				}catch(Exception e){
 					//do nothing, it's a misconfigured url.
 				}
+				try{
+					districtSessionIds.put(d, Long.valueOf(p.getProperty(d.name().toLowerCase() + ".proxy.ssid")));
+				}catch(Exception e){
+					//use the viewer's session
+				}
 			}
+			proxyLinger = Long.parseLong(p.getProperty("proxy.linger",
+				Long.toString(DEFAULT_PROXY_LINGER)));
 		}else{
 			encoderFactory = EncoderFactory.getInstance(p);
 		}
 	}
 
-	private static String createSourceKey(Client c){
-		return c.getCameraName() + ":" + c.getSize();
+	private String createSourceKey(Client c){
+		return createSourceKey(c, c.getSize());
 	}
-	
-	private static void cleanupSources(){
-		Iterator<Entry<String, AbstractDataSource>> it = sources.entrySet().iterator();
-		while(it.hasNext()){
-			Entry<String, AbstractDataSource> entry = it.next();
-			if(!entry.getValue().isAlive()){
-				it.remove();
+
+	private String createSourceKey(Client c, ImageSize size){
+		if(proxy)
+			return c.getDistrict() + ":" + c.getCameraName() + ":" + size;
+		return c.getCameraName() + ":" + size;
+	}
+
+	/** Get the latest image from a running source for the camera of a
+	 * client.  A source of the requested size is preferred; otherwise
+	 * the image of the nearest larger source is scaled down.
+	 * @param c The client requesting an image.
+	 * @param maxAge Age (ms) beyond which an image is not used.
+	 * @return The image, which the caller must release, or null if no
+	 *         running source has a recent one. */
+	static Frame getLiveFrame(Client c, long maxAge){
+		DataSourceFactory f = factory;
+		if(f == null || c.getCameraName() == null)
+			return null;
+		ImageSize size = c.getSize();
+		for(ImageSize s: ImageSize.values()){
+			if(s.ordinal() < size.ordinal())
+				continue;
+			AbstractDataSource src = sources.get(
+				f.createSourceKey(c, s));
+			if(src == null || !src.isUsable())
+				continue;
+			Frame frame = getLatestFrame(src, maxAge);
+			if(frame == null)
+				continue;
+			if(s == size)
+				return frame;
+			try{
+				return src.getScaledFrame(frame, size);
+			}catch(IOException e){
+				f.logger.fine("Live image not scaled: " + e);
+			}finally{
+				frame.release();
 			}
 		}
+		return null;
+	}
+
+	/** Get the latest image of one running source */
+	static private Frame getLatestFrame(AbstractDataSource src, long maxAge){
+		Frame frame = src.getFrameRing().acquireLatest();
+		if(frame == null)
+			return null;
+		if(frame.isFrom(LoadingImage.data) ||
+		   System.currentTimeMillis() - frame.getCaptureTime() > maxAge)
+		{
+			frame.release();
+			return null;
+		}
+		return frame;
+	}
+	
+	/** Remove a stopped source from the registry */
+	static void removeSource(AbstractDataSource src){
+		String key = src.getSourceKey();
+		if(key != null)
+			sources.remove(key, src);
 	}
 
 	private DataSource createDataSource(Client c) throws VideoException {
 		try{
 			if(proxy){
-				URL url = new URL(districtVideoURLs.get(c.getDistrict()), createRelativeURL(c));
-				return new HttpDataSource(c, logger, monitor, url, null, null);
+				Long ssid = districtSessionIds.get(c.getDistrict());
+				return new ProxyDataSource(c, logger, monitor,
+					districtVideoURLs.get(c.getDistrict()),
+					ssid != null ? ssid : c.getSonarSessionId(),
+					proxyLinger);
 			}else{
 				Encoder encoder = encoderFactory.getEncoder(c.getCameraName());
 				if(encoder == null){
@@ -113,30 +194,62 @@ public class DataSourceFactory {
 		}
 	}
 
-	private static String createRelativeURL(Client c) {
+	static String createRelativeURL(Client c, int rate, int duration,
+		long ssid)
+	{
 		return RequestType.STREAM.name().toLowerCase() +
 			"/" + c.getDistrict().name().toLowerCase() +
 			"/" + c.getCameraName() +
 			"?size=" + c.getSize().name().toLowerCase().charAt(0) +
-			"&rate=" + c.getRate() +
-			"&duration=" + c.getDuration() +
-			"&ssid=" + c.getSonarSessionId();
+			"&rate=" + rate +
+			"&duration=" + duration +
+			"&ssid=" + ssid;
 	}
 
-	public synchronized DataSource getDataSource(Client c)
-			throws VideoException {
+	/** Get the source for a client, sharing a running one if possible.
+	 * A new source takes a group resource for its encoder connection,
+	 * which is given back when it stops.  The caller must either start
+	 * the source or give it up with {@link #discard}.
+	 * @throws HTTPException (403) if the camera's group is full. */
+	public DataSource getDataSource(Client c)
+			throws VideoException, HTTPException {
 		if(c.getCameraName()==null){
 			return null;
 		}
-		cleanupSources();
 		String key = createSourceKey(c);
 		logger.info("There are currently " + sources.size() + " datasources.");
-		AbstractDataSource src = sources.get(key);
-		if(src != null && src.isAlive()){
-			return src;
+		while(true){
+			AbstractDataSource src = sources.get(key);
+			if(src != null && src.isUsable() && src.claim()){
+				return src;
+			}
+			AbstractDataSource ns =
+				(AbstractDataSource)createDataSource(c);
+			if(ns == null){
+				return null;
+			}
+			ns.setSourceKey(key);
+			ns.claim();
+			if(!proxy && !ns.requestResource(groupManager))
+				throw new HTTPException(HttpServletResponse.SC_FORBIDDEN);
+			// only one source is ever registered per key; a
+			// candidate which loses the race is never started
+			if(src == null){
+				if(sources.putIfAbsent(key, ns) == null)
+					return ns;
+			}else if(sources.replace(key, src, ns)){
+				return ns;
+			}
+			ns.releaseResource();
 		}
-		src = (AbstractDataSource)createDataSource(c);
-		sources.put(key, src);
-		return src;
+	}
+
+	/** Give up a source which a client obtained but could not start
+	 * (for example because the client went away).  The source is only
+	 * dropped if no other client has been handed it. */
+	public void discard(DataSource ds){
+		AbstractDataSource src = (AbstractDataSource)ds;
+		if(src.unclaim() && !src.isAlive() && !src.isTerminated())
+			src.removeSinks();
 	}
 }
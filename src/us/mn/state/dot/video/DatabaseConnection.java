@@ -25,15 +25,27 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.util.logging.Logger;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
  * DatabaseConnection is a convenience class for making a connection to
  * a database.  It handles all of the queries and sql exceptions as
  * well as re-establishing the connection if it is lost.
+ *
+ * Queries run on a small pool of connections, each with its own cache of
+ * prepared statements.  A connection which has been idle for a while is
+ * validated before use, and a broken one is dropped.  After a failed
+ * connection attempt, new attempts back off exponentially.
  * 
  * @author Timothy Johnson
  * @author Travis Swanston
@@ -56,6 +68,37 @@ public class DatabaseConnection {
 	protected static final String ASCENDING = "asc";
 	
 	protected static final String DESCENDING = "desc";
+
+	protected static final String SQL_CAMERA_CATALOG =
+		"select " + CAMERA_ID + ", " + CAMERA_ENCODER_TYPE +
+		", " + CAMERA_ENCODER + ", " + CAMERA_ENCODER_CHANNEL +
+		", " + CAMERA_PUBLISH + " from " + TABLE_CAMERA;
+
+	protected static final String SQL_CAMERA =
+		SQL_CAMERA_CATALOG + " where " + CAMERA_ID + " = ?";
+
+	// SwitchServer
+	protected static final String SQL_DECODER_MAP =
+		"SELECT " + DID + ", " + CID + " FROM " + TABLE_DECODER_MAP;
+	protected static final String SQL_DECODER_ROW =
+		SQL_DECODER_MAP + " WHERE " + DID + " = ?";
+	protected static final String SQL_MAP_DECODER =
+		"INSERT INTO " + TABLE_DECODER_MAP + " (" + DID + ", " + CID +
+		") VALUES (?, ?)";
+	protected static final String SQL_UNMAP_DECODER =
+		"DELETE FROM " + TABLE_DECODER_MAP + " WHERE " + DID + " = ?";
+
+	/** Query used to validate a connection */
+	protected static final String SQL_VALIDATE = "SELECT 1";
+
+	/** Time (ms) a connection may be idle before it is validated */
+	private static final long VALIDATE_IDLE = 30 * 1000;
+
+	/** Shortest time (ms) to wait after a failed connection attempt */
+	private static final long MIN_BACKOFF = 1000;
+
+	/** Longest time (ms) to wait after a failed connection attempt */
+	private static final long MAX_BACKOFF = 60 * 1000;
 	
 	/** Username for authentication to the db server */
 	private String user = null;
@@ -69,26 +112,104 @@ public class DatabaseConnection {
 	/** Database URL */
 	private String url = null;
 
-	/** The connection object used for executing queries */
-	protected Connection connection = null;
-	
-	protected PreparedStatement isPublishedStatement = null;
-	
-	protected PreparedStatement encoderHostStatement = null;
+	/** Timeout (seconds) for connecting and for socket reads */
+	private int timeout = 30;
 
-	protected PreparedStatement encoderTypeStatement = null;
+	/** Maximum number of open connections */
+	private int poolSize = 4;
 
-	protected PreparedStatement encoderChannelStatement = null;
+	/** Time (ms) to wait for a free connection */
+	private long poolWait = 5000;
 
-	// SwitchServer
-	protected PreparedStatement getDecoderMapStatement = null;
-	protected PreparedStatement mapDecoderStatement = null;
-	protected PreparedStatement unmapDecoderStatement = null;
+	/** Idle connections, most recently used last */
+	private final LinkedBlockingQueue<Pooled> idle =
+		new LinkedBlockingQueue<Pooled>();
+
+	/** Number of open connections (guarded by this) */
+	private int open = 0;
+
+	/** Time (ms) before which no connection is attempted (guarded by
+	 * this) */
+	private long nextConnect = 0;
+
+	/** Time (ms) to wait after the next failed attempt (guarded by
+	 * this) */
+	private long backoff = MIN_BACKOFF;
+
+	/** Number of queries run */
+	private final AtomicLong queries = new AtomicLong();
+
+	/** Number of queries failed */
+	private final AtomicLong failures = new AtomicLong();
+
+	/** Total time (us) spent running queries */
+	private final AtomicLong queryMicros = new AtomicLong();
+
+	/** Longest time (us) spent running one query */
+	private final AtomicLong queryMaxMicros = new AtomicLong();
+
+	/** Total time (us) spent waiting for a connection */
+	private final AtomicLong waitMicros = new AtomicLong();
+
+	/** Number of connections opened */
+	private final AtomicLong connects = new AtomicLong();
 
 	private static DatabaseConnection db = null;
 	
 	private Logger logger = null;
 
+	/** A pooled connection, with its prepared statements */
+	static private final class Pooled {
+		final Connection connection;
+		final HashMap<String, PreparedStatement> statements =
+			new HashMap<String, PreparedStatement>();
+		long lastUsed = System.currentTimeMillis();
+
+		Pooled(Connection c) {
+			connection = c;
+		}
+
+		/** Get a cached prepared statement */
+		PreparedStatement prepare(String sql) throws SQLException {
+			PreparedStatement ps = statements.get(sql);
+			if(ps == null) {
+				ps = connection.prepareStatement(sql);
+				statements.put(sql, ps);
+			}
+			return ps;
+		}
+
+		/** Check the connection with a trivial query */
+		boolean validate() {
+			try {
+				ResultSet rs = prepare(SQL_VALIDATE).executeQuery();
+				try {
+					return rs.next();
+				}
+				finally {
+					rs.close();
+				}
+			}
+			catch(SQLException e) {
+				return false;
+			}
+		}
+
+		void close() {
+			try {
+				connection.close();
+			}
+			catch(SQLException e) {
+				// already broken
+			}
+		}
+	}
+
+	/** Work done with a pooled connection */
+	static private abstract class Query<T> {
+		abstract T run(Pooled pc) throws SQLException;
+	}
+
 	public static synchronized DatabaseConnection create(final Properties p){
 		if(db == null){
 			try{
@@ -111,102 +232,316 @@ public class DatabaseConnection {
 				p.getProperty("tms.db.port") +
 				port_name_separator +
 				dbName;
-		connect();
-	}
-
-	private void connect(){
+		timeout = Integer.parseInt(p.getProperty("tms.db.timeout",
+			Integer.toString(timeout)));
+		poolSize = Math.max(1, Integer.parseInt(p.getProperty(
+			"tms.db.pool.size", Integer.toString(poolSize))));
+		poolWait = Long.parseLong(p.getProperty("tms.db.pool.wait",
+			Long.toString(poolWait)));
 		try {
 			Class.forName( "org.postgresql.Driver" );
-			logger.info( "Openning connection to " + dbName + " database." );
-			connection = DriverManager.getConnection( url, user, password );
-			DatabaseMetaData md = connection.getMetaData();
+			release(borrow(), false);
+		} catch ( Exception e ) {
+			logger.warning("Error connecting to DB: " + url + " USER: " +
+				user + ": " + e.getMessage());
+		}
+	}
+
+	/** Open a new connection to the database */
+	Connection openConnection() throws SQLException {
+		Properties info = new Properties();
+		if(user != null)
+			info.setProperty("user", user);
+		if(password != null)
+			info.setProperty("password", password);
+		info.setProperty("loginTimeout", Integer.toString(timeout));
+		info.setProperty("socketTimeout", Integer.toString(timeout));
+		logger.info( "Openning connection to " + dbName + " database." );
+		Connection c = DriverManager.getConnection(url, info);
+		connects.incrementAndGet();
+		if(connects.get() == 1){
+			DatabaseMetaData md = c.getMetaData();
 			String dbVersion = md.getDatabaseProductName() + ":" + md.getDatabaseProductVersion();
 			logger.info("DB: " + dbVersion);
-			isPublishedStatement = connection.prepareStatement(
-					"select " + CAMERA_PUBLISH + " from " + TABLE_CAMERA +
-					" where " + CAMERA_ID + " = ?");
-			encoderHostStatement = connection.prepareStatement(
-					"select " + CAMERA_ENCODER + " from " + TABLE_CAMERA +
-					" where " + CAMERA_ID + " = ?");
-			encoderTypeStatement = connection.prepareStatement(
-					"select " + CAMERA_ENCODER_TYPE + " from " + TABLE_CAMERA +
-					" where " + CAMERA_ID + " = ?");
-			encoderChannelStatement = connection.prepareStatement(
-					"select " + CAMERA_ENCODER_CHANNEL + " from " + TABLE_CAMERA +
-					" where " + CAMERA_ID + " = ?");
-			// SwitchServer
-			getDecoderMapStatement = connection.prepareStatement(
-				"SELECT " + DID + ", " + CID + " FROM " + TABLE_DECODER_MAP);
-			mapDecoderStatement = connection.prepareStatement(
-				"INSERT INTO " + TABLE_DECODER_MAP + " (" + DID + ", " + CID + ") VALUES (?, ?)");
-			unmapDecoderStatement = connection.prepareStatement(
-				"DELETE FROM " + TABLE_DECODER_MAP + " WHERE " + DID + " = ?");
-			logger.info( "Opened connection to " + dbName + " database." );
-		} catch ( Exception e ) {
-			System.err.println("Error connecting to DB: " + url + " USER: " + user + " PWD: " + password );
 		}
+		logger.info( "Opened connection to " + dbName + " database." );
+		return c;
 	}
-	
-	/** Get the publish attribute of the camera */
-	public synchronized boolean isPublished(String camId){
-		try{
-			isPublishedStatement.setString(1, camId);
-			ResultSet rs = isPublishedStatement.executeQuery();
-			if(rs != null && rs.next()){
-				return rs.getBoolean(CAMERA_PUBLISH);
+
+	/** Take a connection from the pool, opening one if allowed */
+	private Pooled borrow() throws SQLException {
+		long start = System.nanoTime();
+		try {
+			Pooled pc = idle.poll();
+			if(pc == null) {
+				pc = connect();
+				if(pc == null) {
+					pc = idle.poll(poolWait,
+						TimeUnit.MILLISECONDS);
+				}
+				if(pc == null)
+					throw new SQLException("No database connection");
 			}
-		}catch(Exception e){
-			e.printStackTrace();
+			long now = System.currentTimeMillis();
+			if(now - pc.lastUsed > VALIDATE_IDLE && !pc.validate()) {
+				logger.info("Dropping stale database connection.");
+				discard(pc);
+				return borrow();
+			}
+			return pc;
+		}
+		catch(InterruptedException e) {
+			throw new SQLException("Interrupted");
+		}
+		finally {
+			waitMicros.addAndGet((System.nanoTime() - start) / 1000);
 		}
-		return false;
 	}
 
-	public synchronized String getEncoderHost(String camId){
-		try{
-			encoderHostStatement.setString(1, camId);
-			ResultSet rs = encoderHostStatement.executeQuery();
-			if(rs != null && rs.next()){
-				return rs.getString(CAMERA_ENCODER);
+	/** Open a new pooled connection, unless the pool is full.
+	 * @return The connection, or null if the pool is full.
+	 * @throws SQLException while backing off after a failure. */
+	private Pooled connect() throws SQLException {
+		synchronized(this) {
+			if(open >= poolSize)
+				return null;
+			long now = System.currentTimeMillis();
+			if(now < nextConnect) {
+				throw new SQLException("Database unavailable for " +
+					(nextConnect - now) + " ms");
 			}
-		}catch(Exception e){
-			e.printStackTrace();
+			open++;
+		}
+		Pooled pc = null;
+		try {
+			pc = new Pooled(openConnection());
+			return pc;
+		}
+		finally {
+			synchronized(this) {
+				if(pc != null)
+					backoff = MIN_BACKOFF;
+				else {
+					open--;
+					nextConnect = System.currentTimeMillis() +
+						backoff;
+					backoff = Math.min(backoff * 2, MAX_BACKOFF);
+				}
+			}
+		}
+	}
+
+	/** Return a connection to the pool */
+	private void release(Pooled pc, boolean broken) {
+		if(broken) {
+			discard(pc);
+		} else {
+			pc.lastUsed = System.currentTimeMillis();
+			idle.offer(pc);
+		}
+	}
+
+	/** Close a connection and take it out of the pool */
+	private void discard(Pooled pc) {
+		pc.close();
+		synchronized(this) {
+			open--;
+		}
+	}
+
+	/** Roll back a transaction, keeping the original failure */
+	static private void rollback(Connection c) {
+		try {
+			c.rollback();
+		}
+		catch(SQLException e) {
+			// broken connection; reported by the caller
+		}
+	}
+
+	/** Check if a failure means the connection is broken */
+	static private boolean isBroken(Pooled pc, SQLException e) {
+		String state = e.getSQLState();
+		if(state != null && state.startsWith("08"))
+			return true;
+		try {
+			return pc.connection.isClosed();
+		}
+		catch(SQLException ex) {
+			return true;
+		}
+	}
+
+	/** Run a query on a pooled connection.  If the connection turns out
+	 * to be broken, the query is tried once more on another one. */
+	private <T> T execute(Query<T> q) throws SQLException {
+		for(int i = 0; ; i++) {
+			Pooled pc = borrow();
+			long start = System.nanoTime();
+			boolean broken = false;
+			try {
+				return q.run(pc);
+			}
+			catch(SQLException e) {
+				failures.incrementAndGet();
+				broken = isBroken(pc, e);
+				if(!broken || i > 0)
+					throw e;
+			}
+			finally {
+				record((System.nanoTime() - start) / 1000);
+				release(pc, broken);
+			}
+		}
+	}
+
+	/** Record the latency of one query */
+	private void record(long us) {
+		queries.incrementAndGet();
+		queryMicros.addAndGet(us);
+		long m = queryMaxMicros.get();
+		while(us > m && !queryMaxMicros.compareAndSet(m, us))
+			m = queryMaxMicros.get();
+	}
+
+	/** Get a summary of the pool and query metrics */
+	public String getStatus(){
+		long n = queries.get();
+		int o;
+		synchronized(this) {
+			o = open;
+		}
+		return "DB: " + o + "/" + poolSize + " connections (" +
+			idle.size() + " idle, " + connects.get() + " opened), " +
+			n + " queries (" + failures.get() + " failed), avg " +
+			(n > 0 ? queryMicros.get() / n : 0) + " us, max " +
+			queryMaxMicros.get() + " us, avg wait " +
+			(n > 0 ? waitMicros.get() / n : 0) + " us";
+	}
+
+	/** Load every camera in one query.
+	 * @return The catalog, or null if it could not be loaded. */
+	public CameraCatalog getCameraCatalog(){
+		try{
+			return execute(new Query<CameraCatalog>() {
+				CameraCatalog run(Pooled pc) throws SQLException {
+					return loadCameraCatalog(pc);
+				}
+			});
+		}catch(SQLException e){
+			logger.warning("Camera catalog: " + e.getMessage());
 		}
 		return null;
 	}
 
-	public synchronized String getEncoderType(String camId){
+	private CameraCatalog loadCameraCatalog(Pooled pc) throws SQLException {
+		HashMap<String, CameraCatalog.Camera> cams =
+			new HashMap<String, CameraCatalog.Camera>();
+		loadCameras(pc.prepare(SQL_CAMERA_CATALOG), cams);
+		return new CameraCatalog(cams);
+	}
+
+	/** Load some cameras, with one query per camera.
+	 * @return The cameras found (a missing name has been removed), or
+	 *         null if they could not be loaded. */
+	public Map<String, CameraCatalog.Camera> getCameras(
+		final Collection<String> names)
+	{
 		try{
-			encoderTypeStatement.setString(1, camId);
-			ResultSet rs = encoderTypeStatement.executeQuery();
-			if(rs != null && rs.next()){
-				return rs.getString(CAMERA_ENCODER_TYPE);
-			}
-		}catch(Exception e){
-			e.printStackTrace();
+			return execute(new Query<Map<String, CameraCatalog.Camera>>() {
+				Map<String, CameraCatalog.Camera> run(Pooled pc)
+					throws SQLException
+				{
+					HashMap<String, CameraCatalog.Camera> cams =
+						new HashMap<String, CameraCatalog.Camera>();
+					PreparedStatement ps = pc.prepare(SQL_CAMERA);
+					for(String n: names){
+						ps.setString(1, n);
+						loadCameras(ps, cams);
+					}
+					return cams;
+				}
+			});
+		}catch(SQLException e){
+			logger.warning("Cameras: " + e.getMessage());
 		}
 		return null;
 	}
 
-	public synchronized int getEncoderChannel(String camId){
+	private void loadCameras(PreparedStatement ps,
+		Map<String, CameraCatalog.Camera> cams) throws SQLException
+	{
+		ResultSet rs = ps.executeQuery();
 		try{
-			encoderChannelStatement.setString(1, camId);
-			ResultSet rs = encoderChannelStatement.executeQuery();
-			if(rs != null && rs.next()){
-				return rs.getInt(CAMERA_ENCODER_CHANNEL);
+			while(rs.next()){
+				String name = rs.getString(CAMERA_ID);
+				if(name == null)
+					continue;
+				cams.put(name, new CameraCatalog.Camera(name,
+					rs.getString(CAMERA_ENCODER_TYPE),
+					rs.getString(CAMERA_ENCODER),
+					rs.getInt(CAMERA_ENCODER_CHANNEL),
+					rs.getBoolean(CAMERA_PUBLISH)));
 			}
-		}catch(Exception e){
-			e.printStackTrace();
+		}finally{
+			rs.close();
 		}
-		return -1;
 	}
 
 	// SwitchServer
-	public synchronized ConcurrentHashMap<String, String> getDecoderMap() {
+	public ConcurrentHashMap<String, String> getDecoderMap() {
+		try {
+			return execute(new Query<ConcurrentHashMap<String, String>>() {
+				ConcurrentHashMap<String, String> run(Pooled pc)
+					throws SQLException
+				{
+					return loadDecoderMap(pc);
+				}
+			});
+		}
+		catch(SQLException e) {
+			logger.warning("SQLException: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Get the mapping of one decoder.
+	 * @return A map holding the decoder's camera (empty if unmapped),
+	 *         or null on error.
+	 */
+	public ConcurrentHashMap<String, String> getDecoderMap(
+		final String did)
+	{
+		try {
+			return execute(new Query<ConcurrentHashMap<String, String>>() {
+				ConcurrentHashMap<String, String> run(Pooled pc)
+					throws SQLException
+				{
+					PreparedStatement ps =
+						pc.prepare(SQL_DECODER_ROW);
+					ps.setString(1, did);
+					return readDecoderMap(ps.executeQuery());
+				}
+			});
+		}
+		catch(SQLException e) {
+			logger.warning("SQLException: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private ConcurrentHashMap<String, String> loadDecoderMap(Pooled pc)
+		throws SQLException
+	{
+		return readDecoderMap(pc.prepare(SQL_DECODER_MAP).executeQuery());
+	}
+
+	private ConcurrentHashMap<String, String> readDecoderMap(ResultSet rs)
+		throws SQLException
+	{
 		ConcurrentHashMap<String, String> dmap = new ConcurrentHashMap<String, String>();
 		try {
-			ResultSet rs = getDecoderMapStatement.executeQuery();
-			if (rs == null)
-				return null;
 			String did = null;
 			String cid = null;
 			while (rs.next()) {
@@ -216,35 +551,75 @@ public class DatabaseConnection {
 					dmap.put(did, cid);
 			}
 		}
-		catch(SQLException e) {
-			logger.warning("SQLException: " + e.getStackTrace().toString());
-			e.printStackTrace();
-			return null;
+		finally {
+			rs.close();
 		}
 		return dmap;
 	}
 
 	// SwitchServer
-	public synchronized void mapDecoder(String did, String cid) {
-		// technically, should UPSERT or use transaction here
+	public void mapDecoder(String did, String cid) {
 		if (did == null)
 			return;
+		saveDecoderMap(Collections.singletonMap(did, cid));
+	}
+
+	/**
+	 * Write a batch of decoder map changes in one transaction, so
+	 * listeners never see a decoder unmapped in between.
+	 * @param changes Camera by decoder name (null or empty to unmap).
+	 * @return true if the changes were committed.
+	 */
+	public boolean saveDecoderMap(final Map<String, String> changes) {
+		if (changes.isEmpty())
+			return true;
 		try {
-			unmapDecoderStatement.setString(1, did);
-			unmapDecoderStatement.executeUpdate();
-		}
-		catch(SQLException e) {
-			e.printStackTrace();
-		}
-		if ((cid == null) || (cid.trim().equals("")))
-			return;
-		try {
-			mapDecoderStatement.setString(1, did);
-			mapDecoderStatement.setString(2, cid);
-			mapDecoderStatement.executeUpdate();
+			execute(new Query<Object>() {
+				Object run(Pooled pc) throws SQLException {
+					Connection c = pc.connection;
+					c.setAutoCommit(false);
+					try {
+						PreparedStatement ps =
+							pc.prepare(SQL_UNMAP_DECODER);
+						for (String did : changes.keySet()) {
+							ps.setString(1, did);
+							ps.addBatch();
+						}
+						ps.executeBatch();
+						ps = pc.prepare(SQL_MAP_DECODER);
+						boolean mapped = false;
+						for (Map.Entry<String, String> e :
+						     changes.entrySet())
+						{
+							String cid = e.getValue();
+							if ((cid == null) ||
+							    cid.trim().equals(""))
+								continue;
+							ps.setString(1, e.getKey());
+							ps.setString(2, cid);
+							ps.addBatch();
+							mapped = true;
+						}
+						if (mapped)
+							ps.executeBatch();
+						c.commit();
+					}
+					catch (SQLException e) {
+						rollback(c);
+						throw e;
+					}
+					finally {
+						c.setAutoCommit(true);
+					}
+					return null;
+				}
+			});
+			return true;
 		}
 		catch(SQLException e) {
-			e.printStackTrace();
+			logger.warning("Decoder map " + changes.keySet() + ": " +
+				e.getMessage());
+			return false;
 		}
 	}
 
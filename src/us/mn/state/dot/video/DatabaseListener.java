@@ -0,0 +1,234 @@
+/*
+ * Project: Video
+ * Copyright (C) 2015  AHMCT, University of California
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package us.mn.state.dot.video;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * The DatabaseListener keeps a dedicated database connection which
+ * LISTENs for change notifications, and passes them to handlers by
+ * channel.  Notifications received together are merged, so each handler
+ * sees each payload once per batch.  After the connection is lost (when
+ * notifications may have been missed), every handler is asked to reload.
+ */
+public final class DatabaseListener {
+
+	/** Property name to enable listening */
+	static public final String PROP_LISTEN = "db.listen";
+
+	/** Channel notified with the name of a changed camera */
+	static public final String CHANNEL_CAMERA = "video_camera";
+
+	/** Channel notified with the name of a changed decoder */
+	static public final String CHANNEL_DECODER_MAP = "video_decoder_map";
+
+	/** Time (ms) between checks for notifications */
+	static private final long POLL = 250;
+
+	/** Shortest time (ms) to wait before reconnecting */
+	static private final long MIN_BACKOFF = 1000;
+
+	/** Longest time (ms) to wait before reconnecting */
+	static private final long MAX_BACKOFF = 60 * 1000;
+
+	/** Handler for notifications on one channel */
+	static public interface Handler {
+
+		/** Handle a batch of notifications.
+		 * @param payloads Distinct payloads received, or null if
+		 *        notifications may have been missed (or carried no
+		 *        payload) and everything should be reloaded. */
+		void notified(Set<String> payloads);
+	}
+
+	static private DatabaseListener listener = null;
+
+	/** Create the listener, if enabled.
+	 * @return The listener, or null if disabled. */
+	static public synchronized DatabaseListener create(Properties p) {
+		if(listener == null && Boolean.valueOf(p.getProperty(
+			PROP_LISTEN, "true")))
+		{
+			DatabaseConnection db = DatabaseConnection.create(p);
+			if(db != null)
+				listener = new DatabaseListener(db);
+		}
+		return listener;
+	}
+
+	private final Logger logger = Logger.getLogger(Constants.LOGGER_NAME);
+
+	/** Database providing connections */
+	private final DatabaseConnection db;
+
+	/** Handlers by channel */
+	private final ConcurrentHashMap<String, Handler> handlers =
+		new ConcurrentHashMap<String, Handler>();
+
+	/** Channels being listened to on the current connection (only used
+	 * on the listener thread) */
+	private final HashSet<String> listening = new HashSet<String>();
+
+	/** Time (ms) to wait after the next failure (only used on the
+	 * listener thread) */
+	private long backoff = MIN_BACKOFF;
+
+	private DatabaseListener(DatabaseConnection d) {
+		db = d;
+		Thread t = new Thread("DatabaseListener") {
+			public void run() {
+				listen();
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/** Set the handler for a channel */
+	public void addHandler(String channel, Handler h) {
+		handlers.put(channel, h);
+	}
+
+	/** Connect and listen until the connection fails, forever */
+	private void listen() {
+		boolean resync = false;
+		while(true) {
+			Connection c = null;
+			try {
+				c = db.openConnection();
+				if(!(c instanceof PGConnection)) {
+					logger.warning("DatabaseListener: " +
+						"notifications not supported");
+					return;
+				}
+				backoff = MIN_BACKOFF;
+				poll(c, resync);
+			}
+			catch(SQLException e) {
+				logger.warning("DatabaseListener: " + e.getMessage());
+			}
+			catch(InterruptedException e) {
+				// reconnect
+			}
+			finally {
+				close(c);
+			}
+			listening.clear();
+			resync = true;
+			try {
+				Thread.sleep(backoff);
+			}
+			catch(InterruptedException e) {
+				// retry now
+			}
+			backoff = Math.min(backoff * 2, MAX_BACKOFF);
+		}
+	}
+
+	/** Check for notifications on a connection until it fails.
+	 * @param resync Whether notifications may have been missed before
+	 *               the connection was made. */
+	private void poll(Connection c, boolean resync) throws SQLException,
+		InterruptedException
+	{
+		PGConnection pg = (PGConnection)c;
+		Statement st = c.createStatement();
+		try {
+			while(true) {
+				for(String ch: handlers.keySet()) {
+					if(listening.add(ch))
+						st.execute("LISTEN " + ch);
+				}
+				if(resync) {
+					// anything may have changed while
+					// disconnected
+					for(Handler h: handlers.values())
+						dispatch(h, null);
+					resync = false;
+				}
+				// the driver only reads notifications
+				// while running a query
+				st.execute("SELECT 1");
+				PGNotification[] ns = pg.getNotifications();
+				if(ns != null && ns.length > 0)
+					deliver(ns);
+				Thread.sleep(POLL);
+			}
+		}
+		finally {
+			st.close();
+		}
+	}
+
+	/** Merge a batch of notifications and pass them to handlers */
+	private void deliver(PGNotification[] ns) {
+		HashMap<String, Set<String>> batch =
+			new HashMap<String, Set<String>>();
+		for(PGNotification n: ns) {
+			String ch = n.getName();
+			if(!batch.containsKey(ch))
+				batch.put(ch, new HashSet<String>());
+			Set<String> pl = batch.get(ch);
+			String p = n.getParameter();
+			// no payload: reload everything
+			if(p == null || p.length() == 0)
+				batch.put(ch, null);
+			else if(pl != null)
+				pl.add(p);
+		}
+		for(Map.Entry<String, Set<String>> e: batch.entrySet()) {
+			Handler h = handlers.get(e.getKey());
+			if(h != null)
+				dispatch(h, e.getValue());
+		}
+	}
+
+	/** Call a handler, keeping the listener alive if it fails */
+	private void dispatch(Handler h, Set<String> payloads) {
+		try {
+			h.notified(payloads);
+		}
+		catch(RuntimeException e) {
+			logger.warning("DatabaseListener handler: " + e);
+		}
+	}
+
+	static private void close(Connection c) {
+		if(c != null) {
+			try {
+				c.close();
+			}
+			catch(SQLException e) {
+				// already broken
+			}
+		}
+	}
+}
@@ -0,0 +1,312 @@
+/*
+ * Project: Video
+ * Copyright (C) 2015  AHMCT, University of California
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package us.mn.state.dot.video;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * A write-behind journal of decoder map changes.  Each change is appended
+ * to a local file (and synced to disk), then written to the database in
+ * batches by a background thread, so switching never waits on the
+ * database.  Once the database has every change, the file is emptied;
+ * changes still in it at startup never reached the database.
+ */
+final class DecoderMapJournal {
+
+	/** Property name for the journal file */
+	static private final String PROP_FILE = "switch.journal";
+
+	/** Default journal file */
+	static private final String DEFAULT_FILE =
+		"/var/lib/video/decoder_map.journal";
+
+	/** Property name for the time (ms) changes collect before a write */
+	static private final String PROP_DELAY = "switch.journal.delay";
+
+	/** Default time (ms) changes collect before a write */
+	static private final long DEFAULT_DELAY = 200;
+
+	/** Longest time (ms) to wait before retrying a failed write */
+	static private final long MAX_RETRY = 30 * 1000;
+
+	/** Journal size (bytes) above which it is rewritten */
+	static private final long COMPACT_SIZE = 64 * 1024;
+
+	/** The logger used to log all output for the application */
+	private final Logger logger = Logger.getLogger(Constants.LOGGER_NAME);
+
+	/** Database the changes are written to */
+	private final DatabaseConnection tms;
+
+	/** Journal file */
+	private final File file;
+
+	/** Journal output; null if the journal is not durable */
+	private FileOutputStream out = null;
+
+	/** Time (ms) changes collect before a write */
+	private final long delay;
+
+	/** Changes not yet written, camera by decoder ("" when unmapped) */
+	private final LinkedHashMap<String, String> pending =
+		new LinkedHashMap<String, String>();
+
+	/** Changes being written */
+	private Map<String, String> writing = null;
+
+	/** Changes found in the journal at startup */
+	private final Map<String, String> replayed;
+
+	/** Thread writing changes to the database */
+	private final Thread writer;
+
+	/** Set when the journal is closed */
+	private boolean closed = false;
+
+	DecoderMapJournal(Properties p, DatabaseConnection db) {
+		tms = db;
+		file = new File(p.getProperty(PROP_FILE, DEFAULT_FILE));
+		delay = Long.parseLong(p.getProperty(PROP_DELAY,
+			String.valueOf(DEFAULT_DELAY)));
+		replayed = Collections.unmodifiableMap(replay());
+		pending.putAll(replayed);
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null)
+			dir.mkdirs();
+		try {
+			out = new FileOutputStream(file, true);
+		}
+		catch (FileNotFoundException e) {
+			logger.warning("Decoder map journal " + file +
+				" not writable; changes are not durable until " +
+				"written to the database.");
+		}
+		writer = new Thread("DecoderMapJournal") {
+			public void run() {
+				writeChanges();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/** Read changes left in the journal file */
+	private LinkedHashMap<String, String> replay() {
+		LinkedHashMap<String, String> m =
+			new LinkedHashMap<String, String>();
+		if (!file.exists())
+			return m;
+		try {
+			BufferedReader r = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+			try {
+				String line;
+				while ((line = r.readLine()) != null) {
+					int i = line.indexOf('\t');
+					if (i > 0)
+						m.put(line.substring(0, i),
+							line.substring(i + 1));
+				}
+			}
+			finally {
+				r.close();
+			}
+		}
+		catch (IOException e) {
+			logger.warning("Decoder map journal " + file + ": " +
+				e.getMessage());
+		}
+		if (!m.isEmpty()) {
+			logger.info("Decoder map journal: " + m.size() +
+				" changes not yet in the database");
+		}
+		return m;
+	}
+
+	/** Get the changes which were in the journal at startup.
+	 * @return Camera by decoder name ("" when unmapped). */
+	Map<String, String> getReplayed() {
+		return replayed;
+	}
+
+	/** Record a decoder map change.  Returns once it is in the journal.
+	 * @param did Decoder name.
+	 * @param cid Camera name, or null when unmapped. */
+	synchronized void record(String did, String cid) {
+		String c = (cid != null) ? cid : "";
+		if (out != null) {
+			try {
+				out.write((did + "\t" + c + "\n").getBytes("UTF-8"));
+				out.getFD().sync();
+			}
+			catch (IOException e) {
+				logger.warning("Decoder map journal " + file +
+					": " + e.getMessage());
+			}
+		}
+		pending.put(did, c);
+		notifyAll();
+	}
+
+	/** Check if a decoder has a change not yet in the database */
+	synchronized boolean isPending(String did) {
+		return pending.containsKey(did) ||
+			((writing != null) && writing.containsKey(did));
+	}
+
+	/** Write pending changes to the database until closed */
+	private void writeChanges() {
+		long retry = delay;
+		while (true) {
+			Map<String, String> batch;
+			synchronized (this) {
+				try {
+					while (pending.isEmpty() && !closed)
+						wait();
+					// let changes made together share one write
+					long end = System.currentTimeMillis() + delay;
+					long left = delay;
+					while (!closed && (left > 0)) {
+						wait(left);
+						left = end - System.currentTimeMillis();
+					}
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+				if (pending.isEmpty())
+					return;
+				batch = new LinkedHashMap<String, String>(pending);
+				pending.clear();
+				writing = batch;
+			}
+			boolean ok = tms.saveDecoderMap(batch);
+			synchronized (this) {
+				writing = null;
+				if (ok) {
+					if (pending.isEmpty())
+						truncate();
+					else if (file.length() > COMPACT_SIZE)
+						compact();
+				} else {
+					// keep newer changes made meanwhile
+					for (Map.Entry<String, String> e :
+					     batch.entrySet())
+					{
+						if (!pending.containsKey(e.getKey()))
+							pending.put(e.getKey(),
+								e.getValue());
+					}
+				}
+				if (closed)
+					return;
+			}
+			if (ok)
+				retry = delay;
+			else {
+				retry = Math.min(retry * 2, MAX_RETRY);
+				try {
+					Thread.sleep(retry);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	/** Empty the journal once the database has every change */
+	private void truncate() {
+		if (out == null)
+			return;
+		try {
+			out.getChannel().truncate(0);
+			out.getFD().sync();
+		}
+		catch (IOException e) {
+			logger.warning("Decoder map journal " + file + ": " +
+				e.getMessage());
+		}
+	}
+
+	/** Rewrite the journal with only the pending changes */
+	private void compact() {
+		if (out == null)
+			return;
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			FileOutputStream o = new FileOutputStream(tmp);
+			try {
+				StringBuilder sb = new StringBuilder();
+				for (Map.Entry<String, String> e : pending.entrySet())
+					sb.append(e.getKey() + "\t" + e.getValue() + "\n");
+				o.write(sb.toString().getBytes("UTF-8"));
+				o.getFD().sync();
+			}
+			finally {
+				o.close();
+			}
+			if (!tmp.renameTo(file))
+				throw new IOException("rename failed");
+			out.close();
+			out = new FileOutputStream(file, true);
+		}
+		catch (IOException e) {
+			logger.warning("Decoder map journal " + file + ": " +
+				e.getMessage());
+		}
+	}
+
+	/** Make a last attempt to write pending changes and close.  Changes
+	 * which could not be written stay in the journal. */
+	void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			writer.join(2 * SwitchServer.TIMEOUT_CONN_MS);
+		}
+		catch (InterruptedException e) {
+			// closing anyway
+		}
+		synchronized (this) {
+			if (out != null) {
+				try {
+					out.close();
+				}
+				catch (IOException e) {
+					// nothing more to do
+				}
+				out = null;
+			}
+		}
+	}
+}
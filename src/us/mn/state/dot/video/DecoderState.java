@@ -21,6 +21,8 @@ package us.mn.state.dot.video;
 
 import java.lang.Integer;
 import java.lang.String;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A class representing the current state of a video decoder.
@@ -37,6 +39,8 @@ public class DecoderState {
 	private Integer cur_serial = null;
 	// cid of current camera, or null if not streaming
 	private String cur_cid = null;
+	// serializes commands sent to this decoder
+	private final ReentrantLock cmd_lock = new ReentrantLock();
 
 	DecoderState() {
 	}
@@ -81,12 +85,32 @@ public class DecoderState {
 		cur_cid = null;
 	}
 
-	public Integer getStreamSerial() {
+	public synchronized Integer getStreamSerial() {
 		return cur_serial;
 	}
 
-	public String getStreamCamera() {
+	public synchronized String getStreamCamera() {
 		return cur_cid;
 	}
+
+	/**
+	 * Acquire the command lock for this decoder.
+	 * @param ms Maximum time (ms) to wait.
+	 * @return true if the lock was acquired.
+	 */
+	boolean lockCommands(long ms) {
+		try {
+			return cmd_lock.tryLock(ms, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/** Release the command lock for this decoder. */
+	void unlockCommands() {
+		cmd_lock.unlock();
+	}
 }
 
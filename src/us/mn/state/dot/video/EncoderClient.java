@@ -0,0 +1,1024 @@
+/*
+ * Project: Video
+ * Copyright (C) 2015  AHMCT, University of California
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package us.mn.state.dot.video;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+/**
+ * The EncoderClient is a small non-blocking HTTP/1.1 client for talking
+ * to encoders and district servers.  A few selector threads handle all
+ * connections: MJPEG streams are parsed as bytes arrive, and JPEG
+ * fetches may reuse persistent (keep-alive) connections.  All exchanges
+ * with one host run on the same selector thread, which also keeps that
+ * host's idle connections.  Listener callbacks run on the selector
+ * threads and must not block.  Other URL schemes (such as https) fall
+ * back to a blocking HttpURLConnection on a thread of its own.
+ */
+final class EncoderClient {
+
+	/** Property name for the number of selector threads */
+	static public final String PROP_THREADS = "video.nio.threads";
+
+	/** Time (ms) between timeout checks */
+	static private final long TICK = 250;
+
+	/** Maximum idle connections kept for each host */
+	static private final int MAX_IDLE_PER_HOST = 4;
+
+	/** Time (ms) an idle connection is kept */
+	static private final long IDLE_TIMEOUT = 15 * 1000;
+
+	/** Longest response head accepted */
+	static private final int MAX_HEAD = 16 * 1024;
+
+	/** Bytes to make room for on each read */
+	static private final int READ_SIZE = 16 * 1024;
+
+	/** Initial image capacity when the length is not known */
+	static private final int DEFAULT_CAPACITY = 64 * 1024;
+
+	/** Maximum number of reads per exchange for each select */
+	static private final int MAX_READS = 8;
+
+	/** Largest image accepted */
+	static private final int MAX_IMAGE = 8 * 1024 * 1024;
+
+	/** Connect timeout (ms) */
+	static private final int CONN_TIMEOUT = VideoThread.getConnTimeout();
+
+	/** Read timeout (ms) */
+	static private final int READ_TIMEOUT = VideoThread.getReadTimeout();
+
+	static private final Logger logger =
+		Logger.getLogger(Constants.LOGGER_NAME);
+
+	/** Receives the frames of an MJPEG stream */
+	interface StreamListener {
+
+		/** Called with each frame.  The region is only valid during
+		 * the call. */
+		void frame(byte[] buf, int off, int len);
+
+		/** Called once when the stream ends.
+		 * @param e The error, or null at the end of the stream or
+		 *          when cancelled. */
+		void closed(Exception e);
+	}
+
+	/** Receives the result of a JPEG fetch */
+	interface FetchListener {
+
+		/** Called with the image.  The listener takes the reference
+		 * to the buffer. */
+		void fetched(FrameBuffer fb);
+
+		/** Called if the fetch fails or is cancelled.
+		 * @param status The HTTP status, or -1 on an I/O error.
+		 * @param e The error, or null. */
+		void failed(int status, Exception e);
+	}
+
+	/** Something attached to a selection key */
+	static private interface Handler {
+		void ready(SelectionKey k);
+
+		/** Clean up after ready threw */
+		void abort(Throwable t);
+	}
+
+	/** Cached Authorization header values */
+	static private final ConcurrentHashMap<String, String> auths =
+		new ConcurrentHashMap<String, String>();
+
+	/** Threads running blocking exchanges */
+	static private final ExecutorService blocking =
+		Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "EncoderClient-blocking");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+	/** The selector threads */
+	static private final Reactor[] reactors = createReactors();
+
+	static private Reactor[] createReactors() {
+		int n = Math.max(1, PropertiesContext.getIntProp(PROP_THREADS,
+			2));
+		Reactor[] r = new Reactor[n];
+		for(int i = 0; i < n; i++) {
+			try {
+				r[i] = new Reactor(i);
+			}
+			catch(IOException e) {
+				throw new ExceptionInInitializerError(e);
+			}
+		}
+		return r;
+	}
+
+	/** Don't allow instantiation */
+	private EncoderClient() { }
+
+	/** Get the Basic Authorization header value for a user, which is
+	 * computed once for each encoder account. */
+	static String getAuthorization(String user, String pwd) {
+		if(user == null || pwd == null)
+			return null;
+		String up = user + ":" + pwd;
+		String a = auths.get(up);
+		if(a == null) {
+			a = "Basic " + Base64.encodeBytes(up.getBytes());
+			auths.put(up, a);
+		}
+		return a;
+	}
+
+	/** Start reading an MJPEG stream.
+	 * @return The exchange, which may be cancelled. */
+	static Exchange stream(URL url, String user, String pwd,
+		StreamListener l) throws VideoException
+	{
+		if(!isNio(url))
+			return startBlocking(new BlockingStream(url, user, pwd, l));
+		return start(new StreamExchange(url, getAuthorization(user, pwd),
+			l));
+	}
+
+	/** Start fetching a JPEG image.
+	 * @param keepAlive Reuse (and keep) a persistent connection.
+	 * @return The exchange, which may be cancelled. */
+	static Exchange fetch(URL url, String user, String pwd,
+		boolean keepAlive, FetchListener l) throws VideoException
+	{
+		if(!isNio(url))
+			return startBlocking(new BlockingFetch(url, user, pwd, l));
+		return start(new FetchExchange(url, getAuthorization(user, pwd),
+			keepAlive, l));
+	}
+
+	/** Hand an exchange to its selector thread */
+	static private Exchange start(final NioExchange x) {
+		x.reactor.submit(new Runnable() {
+			public void run() {
+				x.open();
+			}
+		});
+		return x;
+	}
+
+	/** Check if a URL is handled by the selector threads */
+	static private boolean isNio(URL url) {
+		return url == null || "http".equalsIgnoreCase(url.getProtocol());
+	}
+
+	/** Run a blocking exchange on its own thread */
+	static private Exchange startBlocking(BlockingExchange x) {
+		blocking.execute(x);
+		return x;
+	}
+
+	/** Get the selector thread for a host */
+	static private Reactor getReactor(String hostKey) {
+		int h = hostKey.hashCode() & 0x7fffffff;
+		return reactors[h % reactors.length];
+	}
+
+	/** A selector thread */
+	static private final class Reactor implements Runnable {
+
+		final Selector selector;
+
+		/** Tasks to run on this thread */
+		final ConcurrentLinkedQueue<Runnable> tasks =
+			new ConcurrentLinkedQueue<Runnable>();
+
+		/** Exchanges in progress */
+		final HashSet<NioExchange> active = new HashSet<NioExchange>();
+
+		/** Idle connections for each host */
+		final HashMap<String, LinkedList<Idle>> idle =
+			new HashMap<String, LinkedList<Idle>>();
+
+		/** Buffer for reading response heads */
+		final ByteBuffer headBuf = ByteBuffer.allocate(READ_SIZE);
+
+		Reactor(int i) throws IOException {
+			selector = Selector.open();
+			Thread t = new Thread(this, "EncoderClient-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+
+		/** Run a task on this thread */
+		void submit(Runnable r) {
+			tasks.add(r);
+			selector.wakeup();
+		}
+
+		public void run() {
+			while(true) {
+				try {
+					loop();
+				}
+				catch(Throwable t) {
+					// keep the selector thread alive
+					logger.warning("EncoderClient: " + t);
+				}
+			}
+		}
+
+		private void loop() throws IOException {
+			selector.select(TICK);
+			Runnable r = tasks.poll();
+			while(r != null) {
+				r.run();
+				r = tasks.poll();
+			}
+			Iterator<SelectionKey> it =
+				selector.selectedKeys().iterator();
+			while(it.hasNext()) {
+				SelectionKey k = it.next();
+				it.remove();
+				if(k.isValid())
+					dispatch((Handler)k.attachment(), k);
+			}
+			checkTimeouts();
+		}
+
+		/** Call a handler; one which throws is aborted without
+		 * disturbing the rest of the pass */
+		private void dispatch(Handler h, SelectionKey k) {
+			try {
+				h.ready(k);
+			}
+			catch(Throwable t) {
+				logger.warning("EncoderClient: " + t);
+				try {
+					h.abort(t);
+				}
+				catch(Throwable t2) {
+					logger.warning("EncoderClient: " + t2);
+				}
+			}
+		}
+
+		/** Fail exchanges past their deadline and close expired idle
+		 * connections */
+		private void checkTimeouts() {
+			long now = System.currentTimeMillis();
+			ArrayList<NioExchange> late = null;
+			for(NioExchange x: active) {
+				if(now > x.deadline) {
+					if(late == null)
+						late = new ArrayList<NioExchange>();
+					late.add(x);
+				}
+			}
+			if(late != null) {
+				for(NioExchange x: late)
+					x.fail(-1, new SocketTimeoutException(
+						"Timed out: " + x.url));
+			}
+			Iterator<LinkedList<Idle>> it = idle.values().iterator();
+			while(it.hasNext()) {
+				LinkedList<Idle> l = it.next();
+				while(!l.isEmpty() &&
+				      now - l.getFirst().since > IDLE_TIMEOUT)
+					l.removeFirst().close();
+				if(l.isEmpty())
+					it.remove();
+			}
+		}
+
+		/** Take an idle connection to a host, or null */
+		Idle takeIdle(String hostKey) {
+			LinkedList<Idle> l = idle.get(hostKey);
+			if(l == null || l.isEmpty())
+				return null;
+			// most recently used first; it is least likely to
+			// have been closed by the server
+			return l.removeLast();
+		}
+
+		/** Keep a connection for reuse */
+		void putIdle(String hostKey, SocketChannel ch, SelectionKey k) {
+			LinkedList<Idle> l = idle.get(hostKey);
+			if(l == null) {
+				l = new LinkedList<Idle>();
+				idle.put(hostKey, l);
+			}
+			if(l.size() >= MAX_IDLE_PER_HOST)
+				l.removeFirst().close();
+			Idle i = new Idle(this, hostKey, ch, k);
+			l.addLast(i);
+		}
+
+		/** Forget an idle connection */
+		void removeIdle(Idle i) {
+			LinkedList<Idle> l = idle.get(i.hostKey);
+			if(l != null)
+				l.remove(i);
+		}
+	}
+
+	/** An idle keep-alive connection */
+	static private final class Idle implements Handler {
+		final Reactor reactor;
+		final String hostKey;
+		final SocketChannel ch;
+		final SelectionKey key;
+		final long since = System.currentTimeMillis();
+
+		Idle(Reactor r, String h, SocketChannel c, SelectionKey k) {
+			reactor = r;
+			hostKey = h;
+			ch = c;
+			key = k;
+			k.attach(this);
+			// readable only when the server closes it
+			k.interestOps(SelectionKey.OP_READ);
+		}
+
+		public void ready(SelectionKey k) {
+			reactor.removeIdle(this);
+			close();
+		}
+
+		public void abort(Throwable t) {
+			reactor.removeIdle(this);
+			close();
+		}
+
+		void close() {
+			key.cancel();
+			try {
+				ch.close();
+			}
+			catch(IOException e) {
+				// nothing to do
+			}
+		}
+	}
+
+	/** States of an exchange */
+	static private final int CONNECTING = 0;
+	static private final int WRITING = 1;
+	static private final int HEAD = 2;
+	static private final int BODY = 3;
+	static private final int DONE = 4;
+
+	/** An exchange in progress */
+	static abstract class Exchange {
+
+		/** Cancel the exchange.  Safe to call from any thread. */
+		abstract void cancel();
+	}
+
+	/** One HTTP request and its response, on a selector thread */
+	static private abstract class NioExchange extends Exchange
+		implements Handler
+	{
+
+		final URL url;
+		final Reactor reactor;
+		final String hostKey;
+		final InetSocketAddress addr;
+		final ByteBuffer request;
+		final boolean keepAlive;
+
+		private SocketChannel ch;
+		private SelectionKey key;
+
+		/** Set if the connection was reused from the idle pool */
+		private boolean reused = false;
+
+		private int state = CONNECTING;
+
+		/** Time (ms) by which the next step must happen */
+		long deadline;
+
+		/** Response head bytes */
+		private byte[] head = new byte[1024];
+		private int headLen = 0;
+
+		/** Response status code */
+		int status = -1;
+
+		/** Response content length, or -1 if unknown */
+		int contentLength = -1;
+
+		/** Set if the server will close the connection */
+		boolean close = false;
+
+		NioExchange(URL u, String auth, boolean ka)
+			throws VideoException
+		{
+			if(u == null)
+				throw new VideoException("URL is null");
+			if(!"http".equalsIgnoreCase(u.getProtocol()))
+				throw new VideoException("Unsupported URL: " + u);
+			url = u;
+			keepAlive = ka;
+			int port = u.getPort() > 0 ? u.getPort() : 80;
+			hostKey = u.getHost() + ":" + port;
+			reactor = getReactor(hostKey);
+			addr = new InetSocketAddress(u.getHost(), port);
+			if(addr.isUnresolved())
+				throw new VideoException("Unknown host: " + u);
+			String file = u.getFile();
+			StringBuilder sb = new StringBuilder();
+			sb.append("GET ").append(file.length() > 0 ? file : "/");
+			sb.append(" HTTP/1.1\r\nHost: ").append(u.getHost());
+			if(u.getPort() > 0)
+				sb.append(':').append(u.getPort());
+			sb.append("\r\n");
+			if(auth != null)
+				sb.append("Authorization: ").append(auth).append("\r\n");
+			sb.append("Connection: ");
+			sb.append(ka ? "keep-alive" : "close").append("\r\n\r\n");
+			request = ByteBuffer.wrap(sb.toString().getBytes());
+		}
+
+		void cancel() {
+			reactor.submit(new Runnable() {
+				public void run() {
+					fail(-1, null);
+				}
+			});
+		}
+
+		/** Open a connection and start sending the request */
+		void open() {
+			reactor.active.add(this);
+			try {
+				Idle i = keepAlive ? reactor.takeIdle(hostKey) : null;
+				if(i != null) {
+					reused = true;
+					ch = i.ch;
+					key = i.key;
+					key.attach(this);
+					startWriting();
+					return;
+				}
+				ch = SocketChannel.open();
+				ch.configureBlocking(false);
+				key = ch.register(reactor.selector, 0, this);
+				if(ch.connect(addr))
+					startWriting();
+				else {
+					state = CONNECTING;
+					key.interestOps(SelectionKey.OP_CONNECT);
+					deadline = System.currentTimeMillis() +
+						CONN_TIMEOUT;
+				}
+			}
+			catch(IOException e) {
+				fail(-1, e);
+			}
+		}
+
+		private void startWriting() {
+			state = WRITING;
+			key.interestOps(SelectionKey.OP_WRITE);
+			deadline = System.currentTimeMillis() + READ_TIMEOUT;
+		}
+
+		public void ready(SelectionKey k) {
+			try {
+				if(state == CONNECTING && k.isConnectable()) {
+					if(ch.finishConnect())
+						startWriting();
+				}
+				else if(state == WRITING && k.isWritable()) {
+					ch.write(request);
+					if(!request.hasRemaining()) {
+						state = HEAD;
+						k.interestOps(SelectionKey.OP_READ);
+					}
+				}
+				else if(k.isReadable())
+					read();
+			}
+			catch(Exception e) {
+				fail(-1, e);
+			}
+		}
+
+		/** Read what is available */
+		private void read() throws IOException {
+			for(int i = 0; i < MAX_READS && state < DONE; i++) {
+				int n = (state == HEAD) ? readHead() : readBody(ch);
+				if(n < 0) {
+					if(state == HEAD)
+						throw new EOFException("No response: " +
+							url);
+					if(state == BODY)
+						eof();
+					return;
+				}
+				if(n == 0)
+					return;
+				deadline = System.currentTimeMillis() +
+					READ_TIMEOUT;
+			}
+		}
+
+		/** Read some of the response head */
+		private int readHead() throws IOException {
+			ByteBuffer b = reactor.headBuf;
+			b.clear();
+			int n = ch.read(b);
+			if(n <= 0)
+				return n;
+			byte[] a = b.array();
+			for(int i = 0; i < n; i++) {
+				if(headLen == head.length) {
+					if(headLen >= MAX_HEAD)
+						throw new IOException("Head too long");
+					byte[] h = new byte[headLen * 2];
+					System.arraycopy(head, 0, h, 0, headLen);
+					head = h;
+				}
+				head[headLen++] = a[i];
+				if(headLen >= 4 && head[headLen - 1] == '\n' &&
+				   head[headLen - 2] == '\r' &&
+				   head[headLen - 3] == '\n' &&
+				   head[headLen - 4] == '\r')
+				{
+					parseHead();
+					if(state != BODY)
+						return n;
+					if(i + 1 < n)
+						body(a, i + 1, n - i - 1);
+					return n;
+				}
+			}
+			return n;
+		}
+
+		/** Parse the response head */
+		private void parseHead() throws IOException {
+			String[] lines = new String(head, 0, headLen, "ISO-8859-1")
+				.split("\r\n");
+			String[] sl = lines[0].split(" ");
+			if(sl.length < 2 || !sl[0].startsWith("HTTP/"))
+				throw new IOException("Bad response: " + lines[0]);
+			try {
+				status = Integer.parseInt(sl[1]);
+			}
+			catch(NumberFormatException e) {
+				throw new IOException("Bad response: " + lines[0]);
+			}
+			close = sl[0].equals("HTTP/1.0");
+			for(int i = 1; i < lines.length; i++) {
+				int c = lines[i].indexOf(':');
+				if(c < 0)
+					continue;
+				String n = lines[i].substring(0, c).trim();
+				String v = lines[i].substring(c + 1).trim();
+				if(n.equalsIgnoreCase("Content-Length")) {
+					try {
+						contentLength = Integer.parseInt(v);
+					}
+					catch(NumberFormatException e) {
+						contentLength = -1;
+					}
+				}
+				else if(n.equalsIgnoreCase("Connection"))
+					close = v.equalsIgnoreCase("close");
+				else if(n.equalsIgnoreCase("Transfer-Encoding") &&
+				        !v.equalsIgnoreCase("identity"))
+					throw new IOException("Unsupported " +
+						"transfer encoding: " + v);
+			}
+			head = null;
+			if(status != 200) {
+				fail(status, null);
+				return;
+			}
+			state = BODY;
+			started();
+		}
+
+		/** Called when the response head has been read */
+		abstract void started() throws IOException;
+
+		/** Handle body bytes read along with the head */
+		abstract void body(byte[] b, int off, int len)
+			throws IOException;
+
+		/** Read body bytes directly from the channel.
+		 * @return The number of bytes read, or -1 at end of stream. */
+		abstract int readBody(SocketChannel c) throws IOException;
+
+		/** Handle the end of the stream during the body */
+		abstract void eof() throws IOException;
+
+		/** Called once when the exchange fails */
+		abstract void failed(int sc, Exception e);
+
+		/** Check if the exchange has ended */
+		final boolean isDone() {
+			return state == DONE;
+		}
+
+		/** End the exchange successfully.
+		 * @param reusable Keep the connection for another request. */
+		final void finish(boolean reusable) {
+			if(state == DONE)
+				return;
+			state = DONE;
+			reactor.active.remove(this);
+			if(reusable && keepAlive && !close)
+				reactor.putIdle(hostKey, ch, key);
+			else
+				closeChannel();
+		}
+
+		/** End the exchange after its handler threw; the failure is
+		 * not the connection's, so it is not retried */
+		public final void abort(Throwable t) {
+			reused = false;
+			fail(-1, new VideoException(t.toString()));
+		}
+
+		/** End the exchange with an error */
+		final void fail(int sc, Exception e) {
+			if(state == DONE)
+				return;
+			// a reused connection may have been closed by the
+			// server; retry once on a new one
+			if(reused && e != null && status < 0 && headLen == 0) {
+				closeChannel();
+				reused = false;
+				request.rewind();
+				open();
+				return;
+			}
+			state = DONE;
+			reactor.active.remove(this);
+			closeChannel();
+			try {
+				failed(sc, e);
+			}
+			catch(RuntimeException re) {
+				logger.warning("EncoderClient: " + re);
+			}
+		}
+
+		private void closeChannel() {
+			if(key != null)
+				key.cancel();
+			try {
+				if(ch != null)
+					ch.close();
+			}
+			catch(IOException e) {
+				// nothing to do
+			}
+		}
+	}
+
+	/** An MJPEG stream exchange */
+	static private final class StreamExchange extends NioExchange {
+
+		private final StreamListener listener;
+
+		private final MJPEGParser parser = new MJPEGParser();
+
+		/** Buffer wrapping the parser array */
+		private ByteBuffer buf = null;
+
+		StreamExchange(URL u, String auth, StreamListener l)
+			throws VideoException
+		{
+			super(u, auth, false);
+			listener = l;
+		}
+
+		void started() {
+			// nothing to prepare
+		}
+
+		void body(byte[] b, int off, int len) throws IOException {
+			parser.feed(b, off, len);
+			drain();
+		}
+
+		int readBody(SocketChannel c) throws IOException {
+			int off = parser.prepare(READ_SIZE);
+			byte[] a = parser.getBuffer();
+			if(buf == null || buf.array() != a)
+				buf = ByteBuffer.wrap(a);
+			buf.limit(off + parser.getFree());
+			buf.position(off);
+			int n = c.read(buf);
+			if(n > 0) {
+				parser.filled(n);
+				drain();
+			}
+			return n;
+		}
+
+		/** Pass each complete frame to the listener */
+		private void drain() throws IOException {
+			while(!isDone() && parser.next()) {
+				listener.frame(parser.getBuffer(),
+					parser.getFrameOffset(),
+					parser.getFrameLength());
+			}
+		}
+
+		void eof() {
+			finish(false);
+			listener.closed(null);
+		}
+
+		void failed(int sc, Exception e) {
+			if(e == null && sc > 0)
+				e = new VideoException("HTTP " + sc + ": " + url);
+			listener.closed(e);
+		}
+	}
+
+	/** A JPEG fetch exchange */
+	static private final class FetchExchange extends NioExchange {
+
+		private final FetchListener listener;
+
+		/** Buffer receiving the image */
+		private FrameBuffer fb = null;
+
+		/** Number of image bytes received */
+		private int n = 0;
+
+		FetchExchange(URL u, String auth, boolean ka, FetchListener l)
+			throws VideoException
+		{
+			super(u, auth, ka);
+			listener = l;
+		}
+
+		void started() throws IOException {
+			if(contentLength > MAX_IMAGE)
+				throw new IOException("Image too large: " + url);
+			fb = FrameBuffer.allocate(contentLength >= 0 ?
+				contentLength : DEFAULT_CAPACITY);
+			if(contentLength == 0)
+				complete(true);
+		}
+
+		void body(byte[] b, int off, int len) throws IOException {
+			if(contentLength >= 0)
+				len = Math.min(len, contentLength - n);
+			fb = fb.reserve(n, len);
+			System.arraycopy(b, off, fb.getArray(),
+				FrameBuffer.HEAD_ROOM + n, len);
+			n += len;
+			if(n == contentLength)
+				complete(true);
+		}
+
+		int readBody(SocketChannel c) throws IOException {
+			if(n > MAX_IMAGE)
+				throw new IOException("Image too large: " + url);
+			int more = (contentLength >= 0) ? contentLength - n :
+				READ_SIZE;
+			fb = fb.reserve(n, more);
+			ByteBuffer b = ByteBuffer.wrap(fb.getArray(),
+				FrameBuffer.HEAD_ROOM + n, more);
+			int r = c.read(b);
+			if(r > 0) {
+				n += r;
+				if(n == contentLength)
+					complete(true);
+			}
+			return r;
+		}
+
+		void eof() throws IOException {
+			if(contentLength >= 0)
+				throw new EOFException("Image truncated: " + url);
+			complete(false);
+		}
+
+		/** Hand the image to the listener */
+		private void complete(boolean reusable) {
+			FrameBuffer b = fb;
+			fb = null;
+			b.seal(n);
+			finish(reusable);
+			listener.fetched(b);
+		}
+
+		void failed(int sc, Exception e) {
+			if(fb != null) {
+				fb.release();
+				fb = null;
+			}
+			listener.failed(sc, e);
+		}
+	}
+
+	/** An exchange on a blocking HttpURLConnection */
+	static private abstract class BlockingExchange extends Exchange
+		implements Runnable
+	{
+		final URL url;
+		private final String user;
+		private final String pwd;
+
+		/** Set once the exchange is cancelled */
+		private volatile boolean cancelled = false;
+
+		/** The connection, while open */
+		private volatile HttpURLConnection conn = null;
+
+		BlockingExchange(URL u, String user, String pwd) {
+			url = u;
+			this.user = user;
+			this.pwd = pwd;
+		}
+
+		void cancel() {
+			cancelled = true;
+			HttpURLConnection c = conn;
+			if(c != null)
+				c.disconnect();
+		}
+
+		/** Check if the exchange has been cancelled */
+		final boolean isCancelled() {
+			return cancelled;
+		}
+
+		public void run() {
+			HttpURLConnection c = null;
+			try {
+				c = ImageFactory.createConnection(url, user, pwd);
+				if(c == null)
+					throw new IOException("Unable to connect: " +
+						url);
+				conn = c;
+				if(cancelled) {
+					failed(-1, null);
+					return;
+				}
+				int sc = c.getResponseCode();
+				if(sc != 200) {
+					failed(sc, null);
+					return;
+				}
+				InputStream in = c.getInputStream();
+				try {
+					read(c, in);
+				}
+				finally {
+					in.close();
+				}
+			}
+			catch(Exception e) {
+				failed(-1, cancelled ? null : e);
+			}
+			finally {
+				conn = null;
+				if(c != null)
+					c.disconnect();
+			}
+		}
+
+		/** Read the response body */
+		abstract void read(HttpURLConnection c, InputStream in)
+			throws IOException;
+
+		/** Called once when the exchange fails */
+		abstract void failed(int sc, Exception e);
+	}
+
+	/** An MJPEG stream read with a blocking connection */
+	static private final class BlockingStream extends BlockingExchange {
+
+		private final StreamListener listener;
+
+		BlockingStream(URL u, String user, String pwd, StreamListener l) {
+			super(u, user, pwd);
+			listener = l;
+		}
+
+		void read(HttpURLConnection c, InputStream in)
+			throws IOException
+		{
+			MJPEGParser parser = new MJPEGParser();
+			while(!isCancelled()) {
+				int off = parser.prepare(READ_SIZE);
+				int n = in.read(parser.getBuffer(), off,
+					parser.getFree());
+				if(n < 0)
+					break;
+				parser.filled(n);
+				while(!isCancelled() && parser.next()) {
+					listener.frame(parser.getBuffer(),
+						parser.getFrameOffset(),
+						parser.getFrameLength());
+				}
+			}
+			listener.closed(null);
+		}
+
+		void failed(int sc, Exception e) {
+			if(e == null && sc > 0)
+				e = new VideoException("HTTP " + sc + ": " + url);
+			listener.closed(e);
+		}
+	}
+
+	/** A JPEG fetch with a blocking connection */
+	static private final class BlockingFetch extends BlockingExchange {
+
+		private final FetchListener listener;
+
+		BlockingFetch(URL u, String user, String pwd, FetchListener l) {
+			super(u, user, pwd);
+			listener = l;
+		}
+
+		void read(HttpURLConnection c, InputStream in)
+			throws IOException
+		{
+			int len = c.getContentLength();
+			if(len > MAX_IMAGE)
+				throw new IOException("Image too large: " + url);
+			FrameBuffer fb = FrameBuffer.allocate(len >= 0 ? len :
+				DEFAULT_CAPACITY);
+			int n = 0;
+			try {
+				while(len < 0 || n < len) {
+					if(n > MAX_IMAGE)
+						throw new IOException(
+							"Image too large: " + url);
+					int more = (len >= 0) ? len - n : READ_SIZE;
+					fb = fb.reserve(n, more);
+					int r = in.read(fb.getArray(),
+						FrameBuffer.HEAD_ROOM + n, more);
+					if(r < 0)
+						break;
+					n += r;
+				}
+				if(len >= 0 && n < len)
+					throw new EOFException("Image truncated: " +
+						url);
+				if(isCancelled())
+					throw new IOException("Cancelled");
+			}
+			catch(IOException e) {
+				fb.release();
+				throw e;
+			}
+			fb.seal(n);
+			listener.fetched(fb);
+		}
+
+		void failed(int sc, Exception e) {
+			listener.failed(sc, e);
+		}
+	}
+}
@@ -19,9 +19,14 @@
  */
 package us.mn.state.dot.video;
 
-import java.util.Calendar;
-import java.util.Hashtable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -29,7 +34,11 @@ import java.util.logging.Logger;
  * @author Travis Swanston
  *
  * The EncoderFactory is responsible for creating Encoder objects and
- * making sure that they are in sync with the database.
+ * making sure that they are in sync with the database.  The whole camera
+ * view is loaded into a CameraCatalog in the background; lookups only
+ * read the latest catalog and the encoders built from it.  Cameras are
+ * reloaded when the database notifies a change, and the whole catalog
+ * is still reloaded periodically in case a notification is lost.
  */
 public class EncoderFactory {
 
@@ -39,19 +48,32 @@ public class EncoderFactory {
 
 	protected DatabaseConnection tms = null;
 
+	/** Most cameras reloaded one by one after a notification */
+	private static final int MAX_UPDATE = 32;
+
 	/** The expiration time of database information, in milliseconds */
 	protected long dbExpire = 10 * 1000;
 
-	/** The time, in milliseconds, of the last database update */
-	protected long dbTime = 0;
-	
 	protected Properties properties = null;
 
 	protected Logger logger = null;
 	
-	/** Hashtable of encoders indexed by camera name */
-	protected final Hashtable<String, Encoder> encoders =
-		new Hashtable<String, Encoder>();
+	/** The latest camera catalog */
+	private volatile CameraCatalog catalog = CameraCatalog.EMPTY;
+
+	/** Encoders indexed by camera name, built from the catalog */
+	private volatile Map<String, Encoder> encoders =
+		Collections.<String, Encoder>emptyMap();
+
+	/** Timer refreshing the catalog */
+	private final ScheduledThreadPoolExecutor timer =
+		new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "EncoderFactory");
+				t.setDaemon(true);
+				return t;
+			}
+		});
 
 	private static EncoderFactory factory = null;
 	
@@ -70,43 +92,104 @@ public class EncoderFactory {
 		}catch(Exception e){
 			//do nothing, use the default database expiration
 		}
+		refresh();
+		DatabaseListener l = DatabaseListener.create(props);
+		if(l != null){
+			l.addHandler(DatabaseListener.CHANNEL_CAMERA,
+				new DatabaseListener.Handler() {
+					public void notified(final Set<String> names) {
+						timer.execute(new Runnable() {
+							public void run() {
+								update(names);
+							}
+						});
+					}
+				});
+		}
+		timer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				refresh();
+			}
+		}, dbExpire, dbExpire, TimeUnit.MILLISECONDS);
 	}
 
-	private boolean dbExpired(){
-		logger.info("Checking if database is expired.");
-		long now = Calendar.getInstance().getTimeInMillis();
-		return (now - dbTime) > dbExpire;
+	/** Load a new camera catalog and swap it in.
+	 * @return false if the catalog could not be loaded. */
+	public synchronized boolean refresh(){
+		long start = System.currentTimeMillis();
+		CameraCatalog cat = (tms != null) ? tms.getCameraCatalog() : null;
+		if(cat == null){
+			logger.warning("Camera catalog not loaded; keeping " +
+				catalog.size() + " cameras.");
+			if(tms == null)
+				tms = DatabaseConnection.create(properties);
+			return false;
+		}
+		install(cat);
+		logger.info("Loaded " + cat.size() + " cameras, " +
+			encoders.size() + " encoders in " +
+			(System.currentTimeMillis() - start) + " ms.");
+		logger.info(tms.getStatus());
+		return true;
 	}
 
-	private synchronized void updateEncoders(){
-		logger.info("Updating encoder information.");
-		for(String key : encoders.keySet()){
-			logger.info("Updating encoder for " + key);
-			createEncoder(key);
+	/** Reload some cameras (after a change notification).  Too many
+	 * changes at once reload the whole catalog.
+	 * @param names Camera names, or null to reload everything. */
+	public synchronized void update(Set<String> names){
+		if(names == null || names.size() > MAX_UPDATE || tms == null){
+			refresh();
+			return;
 		}
-		dbTime = Calendar.getInstance().getTimeInMillis();
+		Map<String, CameraCatalog.Camera> rows = tms.getCameras(names);
+		if(rows == null)
+			return;
+		HashMap<String, CameraCatalog.Camera> cams =
+			new HashMap<String, CameraCatalog.Camera>();
+		for(CameraCatalog.Camera cam : catalog.getCameras())
+			cams.put(cam.name, cam);
+		for(String n : names){
+			CameraCatalog.Camera cam = rows.get(n);
+			if(cam != null)
+				cams.put(n, cam);
+			else
+				cams.remove(n);
+		}
+		install(new CameraCatalog(cams));
+		logger.info("Updated cameras " + names);
+	}
+
+	/** Swap in a new catalog, with encoders built from it.  Encoders
+	 * of cameras whose encoder has not changed are kept. */
+	private void install(CameraCatalog cat){
+		CameraCatalog old = catalog;
+		Map<String, Encoder> prev = encoders;
+		HashMap<String, Encoder> encs = new HashMap<String, Encoder>();
+		for(CameraCatalog.Camera cam : cat.getCameras()){
+			Encoder e = prev.get(cam.name);
+			if(e == null || !cam.sameEncoder(old.getCamera(cam.name)))
+				e = createEncoder(cam);
+			if(e != null)
+				encs.put(cam.name, e);
+		}
+		encoders = Collections.unmodifiableMap(encs);
+		catalog = cat;
+	}
+
+	/** Get the latest camera catalog */
+	public CameraCatalog getCatalog(){
+		return catalog;
 	}
 	
 	public Encoder getEncoder(String cameraId){
-		if(dbExpired()) updateEncoders();
-		Encoder e = encoders.get(cameraId);
-		if(e != null) return e;
-		try{
-			return createEncoder(cameraId);
-		}catch(Throwable th){
-			if(logger != null){
-				logger.warning("Error creating encoder for camera " +
-						cameraId + ": " + th.getMessage());
-			}
-			tms = DatabaseConnection.create(properties);
-			return null;
-		}
+		if(cameraId == null) return null;
+		return encoders.get(cameraId);
 	}
 	
-	protected Encoder createEncoder(String name){
-		if(name == null) return null;
-		String mfr = tms.getEncoderType(name);
-		String host = tms.getEncoderHost(name);
+	protected Encoder createEncoder(CameraCatalog.Camera cam){
+		String name = cam.name;
+		String mfr = cam.encoderType;
+		String host = cam.encoderHost;
 		if(mfr == null || host == null) return null;
 		Encoder e = null;
 		if (AXIS_MJPEG.equals(mfr)) {
@@ -125,19 +208,15 @@ public class EncoderFactory {
 			e = new Infinova(host, u, p);
 		}
 		else {
-			logger.info("Failed to create new encoder for camera "
+			logger.fine("Failed to create new encoder for camera "
 				+ name + ": unknown encoder type");
+			return null;
 		}
-		logger.info("Created new encoder for camera " + name);
-		int ch = tms.getEncoderChannel(name);
-		e.setCamera(name, ch);
-		encoders.put(name, e);
-		logger.info(name + " " + e);
-		logger.info(encoders.size() + " encoders.");
+		e.setCamera(name, cam.channel);
 		return e;
 	}
 	
 	public boolean isPublished(String cameraId){
-		return tms.isPublished(cameraId);
+		return catalog.isPublished(cameraId);
 	}
 }
@@ -0,0 +1,169 @@
+/*
+ * Project: Video
+ * Copyright (C) 2015  AHMCT, University of California
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package us.mn.state.dot.video;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A Frame is a single JPEG image published by a DataSource, tagged with
+ * the sequence number it was given by the FrameRing and the time it was
+ * received.  Frames are immutable once published.
+ *
+ * Each frame carries its complete multipart body part (boundary,
+ * headers, JPEG data and trailing CRLF), encoded once in a pooled
+ * FrameBuffer which every MJPEG writer sends as-is.  Readers which keep
+ * using a frame after taking it from a ring or cache must hold a
+ * reference with retain() and drop it with release(), so the buffer is
+ * not recycled underneath them.
+ */
+public final class Frame {
+
+	/** Sequence number assigned by the FrameRing */
+	private final long seq;
+
+	/** Time (ms) at which the frame was published */
+	private final long time;
+
+	/** Time (ms) at which the image was first published (kept when
+	 * the image is re-published) */
+	private final long captured;
+
+	/** The image array this frame was published from, or null if it
+	 * was published from a region of a larger buffer */
+	private final byte[] src;
+
+	/** The buffer holding the encoded body part */
+	private final FrameBuffer buffer;
+
+	/** Create a new frame from a sealed buffer.  The frame takes over
+	 * the caller's reference to the buffer. */
+	Frame(long seq, FrameBuffer fb) {
+		this(seq, null, fb);
+	}
+
+	/** Create a new frame holding a copy of an image */
+	Frame(long seq, byte[] data) {
+		this(seq, data, FrameBuffer.copyOf(data, 0, data.length));
+	}
+
+	/** Create a new frame holding a copy of a region of a buffer */
+	Frame(long seq, byte[] buf, int off, int len) {
+		this(seq, null, FrameBuffer.copyOf(buf, off, len));
+	}
+
+	/** Create a new frame.  The frame takes over the caller's reference
+	 * to the buffer. */
+	private Frame(long seq, byte[] src, FrameBuffer fb) {
+		this(seq, src, fb, System.currentTimeMillis());
+	}
+
+	/** Create a new frame with a capture time */
+	private Frame(long seq, byte[] src, FrameBuffer fb, long captured) {
+		this.seq = seq;
+		this.time = System.currentTimeMillis();
+		this.captured = captured;
+		this.src = src;
+		this.buffer = fb;
+	}
+
+	/** Create a frame with a new sequence number sharing this frame's
+	 * buffer.  The caller must hold a reference to this frame.
+	 * @return The new frame, holding its own reference. */
+	Frame repeat(long s) {
+		buffer.retain();
+		return new Frame(s, src, buffer, captured);
+	}
+
+	/** Get the sequence number of this frame */
+	public long getSequence() {
+		return seq;
+	}
+
+	/** Get the time (ms) at which this frame was published */
+	public long getTime() {
+		return time;
+	}
+
+	/** Get the time (ms) at which the image was first published */
+	public long getCaptureTime() {
+		return captured;
+	}
+
+	/** Check if this frame was published from the given image array */
+	boolean isFrom(byte[] img) {
+		return src != null && src == img;
+	}
+
+	/** Add a reference to this frame.
+	 * @return false if the frame has already been recycled, in which
+	 *         case it must not be used. */
+	public boolean retain() {
+		return buffer.retain();
+	}
+
+	/** Drop a reference to this frame */
+	public void release() {
+		buffer.release();
+	}
+
+	/** Get a copy of the JPEG image data */
+	public byte[] getData() {
+		byte[] d = new byte[getDataLength()];
+		System.arraycopy(buffer.getArray(), getDataOffset(), d, 0,
+			d.length);
+		return d;
+	}
+
+	/** Get the buffer holding the body part.  The buffer is shared by
+	 * all readers and must not be modified. */
+	public byte[] getPart() {
+		return buffer.getArray();
+	}
+
+	/** Get the offset of the body part in the buffer */
+	public int getPartOffset() {
+		return buffer.getPartOffset();
+	}
+
+	/** Get the length of the body part */
+	public int getPartLength() {
+		return buffer.getPartLength();
+	}
+
+	/** Get the offset of the JPEG data in the buffer */
+	public int getDataOffset() {
+		return FrameBuffer.HEAD_ROOM;
+	}
+
+	/** Get the length of the JPEG data */
+	public int getDataLength() {
+		return buffer.getDataLength();
+	}
+
+	/** Write the complete body part */
+	public void writePart(OutputStream out) throws IOException {
+		out.write(getPart(), getPartOffset(), getPartLength());
+	}
+
+	/** Write the JPEG data */
+	public void writeData(OutputStream out) throws IOException {
+		out.write(getPart(), getDataOffset(), getDataLength());
+	}
+}
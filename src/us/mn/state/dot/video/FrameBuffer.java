@@ -0,0 +1,204 @@
+/*
+ * Project: Video
+ * Copyright (C) 2015  AHMCT, University of California
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package us.mn.state.dot.video;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A FrameBuffer is a reference-counted, pooled buffer holding one JPEG
+ * image laid out as a complete multipart body part.  The image is read
+ * (or copied) to a fixed offset, leaving room in front for the part
+ * headers, so sealing the buffer never moves the image.  The buffer is
+ * returned to the pool when the last reference is released.
+ */
+final class FrameBuffer {
+
+	/** Body part header bytes preceding the content length */
+	static private final byte[] PART_HEAD = (MJPEG.BOUNDARY +
+		"Content-Type: image/jpeg\r\n" +
+		"Content-Length: ").getBytes();
+
+	/** Maximum number of decimal digits in a content length */
+	static private final int MAX_DIGITS = 10;
+
+	/** Offset of the image data within the buffer */
+	static final int HEAD_ROOM = PART_HEAD.length + MAX_DIGITS + 4;
+
+	/** Room needed after the image data for the trailing CRLF */
+	static private final int TAIL_ROOM = 2;
+
+	/** Initial image capacity when the length is not known */
+	static private final int DEFAULT_CAPACITY = 64 * 1024;
+
+	/** Property name for the free bytes retained per size class */
+	static public final String PROP_POOL_BYTES = "video.pool.bytes";
+
+	/** The pool of frame buffers */
+	static final BufferPool pool = new BufferPool(
+		PropertiesContext.getIntProp(PROP_POOL_BYTES, 16 * 1024 * 1024));
+
+	/** The buffer array */
+	private final byte[] array;
+
+	/** Reference count; the buffer is recycled when it reaches zero */
+	private final AtomicInteger refs = new AtomicInteger(1);
+
+	/** Offset of the body part, set when sealed */
+	private int partOffset;
+
+	/** Length of the image data, set when sealed */
+	private int dataLength;
+
+	/** Allocate a buffer for an image of up to len bytes.  The caller
+	 * holds the only reference. */
+	static FrameBuffer allocate(int len) {
+		return new FrameBuffer(pool.acquire(HEAD_ROOM + len + TAIL_ROOM));
+	}
+
+	/** Create a sealed buffer holding a copy of an image region */
+	static FrameBuffer copyOf(byte[] buf, int off, int len) {
+		FrameBuffer fb = allocate(len);
+		System.arraycopy(buf, off, fb.array, HEAD_ROOM, len);
+		fb.seal(len);
+		return fb;
+	}
+
+	/** Read an image from a stream into a new sealed buffer.
+	 * @param in The stream.
+	 * @param length The image length, or -1 to read to end of stream.
+	 * @return The buffer, holding fewer than length bytes if the stream
+	 *         ended early. */
+	static FrameBuffer read(InputStream in, int length) throws IOException {
+		FrameBuffer fb = allocate(length >= 0 ? length :
+			DEFAULT_CAPACITY);
+		int n = 0;
+		try {
+			while(length < 0 || n < length) {
+				if(n == fb.capacity())
+					fb = fb.grow(n);
+				int max = fb.capacity() - n;
+				if(length >= 0)
+					max = Math.min(max, length - n);
+				int r = in.read(fb.array, HEAD_ROOM + n, max);
+				if(r < 0)
+					break;
+				n += r;
+			}
+		}
+		catch(IOException e) {
+			fb.release();
+			throw e;
+		}
+		fb.seal(n);
+		return fb;
+	}
+
+	/** Create a new buffer */
+	private FrameBuffer(byte[] a) {
+		array = a;
+	}
+
+	/** Get the maximum image length this buffer can hold */
+	int capacity() {
+		return array.length - HEAD_ROOM - TAIL_ROOM;
+	}
+
+	/** Replace this unsealed buffer with a larger one, keeping the first
+	 * n bytes of image data.  This buffer is released. */
+	private FrameBuffer grow(int n) {
+		FrameBuffer fb = allocate(capacity() * 2);
+		System.arraycopy(array, HEAD_ROOM, fb.array, HEAD_ROOM, n);
+		release();
+		return fb;
+	}
+
+	/** Make room for more image data, replacing this unsealed buffer
+	 * with a larger one if needed.
+	 * @param n Number of image bytes already in the buffer.
+	 * @param more Number of bytes to make room for.
+	 * @return This buffer, or a larger one holding the first n bytes. */
+	FrameBuffer reserve(int n, int more) {
+		if(n + more <= capacity())
+			return this;
+		FrameBuffer fb = allocate(Math.max(capacity() * 2, n + more));
+		System.arraycopy(array, HEAD_ROOM, fb.array, HEAD_ROOM, n);
+		release();
+		return fb;
+	}
+
+	/** Write the part headers and trailer around len bytes of image */
+	void seal(int len) {
+		int l = len;
+		int i = HEAD_ROOM;
+		array[--i] = '\n';
+		array[--i] = '\r';
+		array[--i] = '\n';
+		array[--i] = '\r';
+		do {
+			array[--i] = (byte)('0' + l % 10);
+			l /= 10;
+		} while(l > 0);
+		i -= PART_HEAD.length;
+		System.arraycopy(PART_HEAD, 0, array, i, PART_HEAD.length);
+		array[HEAD_ROOM + len] = '\r';
+		array[HEAD_ROOM + len + 1] = '\n';
+		partOffset = i;
+		dataLength = len;
+	}
+
+	/** Get the buffer array */
+	byte[] getArray() {
+		return array;
+	}
+
+	/** Get the offset of the body part */
+	int getPartOffset() {
+		return partOffset;
+	}
+
+	/** Get the length of the body part */
+	int getPartLength() {
+		return HEAD_ROOM - partOffset + dataLength + TAIL_ROOM;
+	}
+
+	/** Get the length of the image data */
+	int getDataLength() {
+		return dataLength;
+	}
+
+	/** Add a reference, unless the buffer has already been recycled.
+	 * @return true if a reference was added. */
+	boolean retain() {
+		while(true) {
+			int r = refs.get();
+			if(r <= 0)
+				return false;
+			if(refs.compareAndSet(r, r + 1))
+				return true;
+		}
+	}
+
+	/** Drop a reference, recycling the buffer if it was the last one */
+	void release() {
+		if(refs.decrementAndGet() == 0)
+			pool.release(array);
+	}
+}
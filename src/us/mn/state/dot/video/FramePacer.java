@@ -0,0 +1,115 @@
+/*
+ * Project: Video
+ * Copyright (C) 2015  AHMCT, University of California
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package us.mn.state.dot.video;
+
+/**
+ * A FramePacer picks the frames sent to one viewer.  The source runs at
+ * its own rate; each viewer passes the frames through a token bucket
+ * filled by the frames' publish times, so it gets an evenly decimated
+ * subset at its own rate.  When writes to the viewer can't keep up, the
+ * rate is halved; after a run of quick writes it climbs back up.
+ */
+final class FramePacer {
+
+	/** Lowest rate (fps) a viewer is stepped down to */
+	static private final int MIN_RATE = 1;
+
+	/** Consecutive slow writes before the rate is stepped down */
+	static private final int SLOW_WRITES = 3;
+
+	/** Consecutive quick writes before the rate is stepped up */
+	static private final int QUICK_WRITES = 30;
+
+	/** Fraction of a token a frame may borrow, to absorb timing jitter
+	 * between frames arriving at exactly the viewer rate */
+	static private final double JITTER = 0.2;
+
+	/** Most tokens the bucket holds.  Credit left over between frames
+	 * carries to the next, so rates which don't divide the source rate
+	 * still average out; the cap keeps a pause from causing more than a
+	 * two-frame burst. */
+	static private final double MAX_TOKENS = 2;
+
+	/** Rate (fps) requested by the viewer */
+	private final int maxRate;
+
+	/** Current rate (fps) */
+	private int rate;
+
+	/** Tokens in the bucket; one frame costs one token */
+	private double tokens = 1;
+
+	/** Publish time of the last frame offered */
+	private long lastTime = -1;
+
+	/** Number of consecutive slow writes */
+	private int slow = 0;
+
+	/** Number of consecutive quick writes */
+	private int quick = 0;
+
+	/** Create a pacer for a viewer rate (fps) */
+	FramePacer(int r) {
+		maxRate = Math.max(MIN_RATE, r);
+		rate = maxRate;
+	}
+
+	/** Get the current rate (fps) */
+	int getRate() {
+		return rate;
+	}
+
+	/** Get the current time (ms) between frames */
+	long getInterval() {
+		return 1000 / rate;
+	}
+
+	/** Offer a frame.
+	 * @return true if the frame should be sent. */
+	boolean admit(Frame f) {
+		long t = f.getTime();
+		if(lastTime >= 0 && t > lastTime)
+			tokens = Math.min(MAX_TOKENS,
+				tokens + (t - lastTime) * rate / 1000.0);
+		lastTime = t;
+		if(tokens >= 1 - JITTER) {
+			tokens -= 1;
+			return true;
+		}
+		return false;
+	}
+
+	/** Record a write to the viewer.
+	 * @param s true if the write could not keep up with the rate. */
+	void wrote(boolean s) {
+		if(s) {
+			quick = 0;
+			if(++slow >= SLOW_WRITES && rate > MIN_RATE) {
+				rate = Math.max(MIN_RATE, rate / 2);
+				slow = 0;
+			}
+		}else {
+			slow = 0;
+			if(++quick >= QUICK_WRITES && rate < maxRate) {
+				rate++;
+				quick = 0;
+			}
+		}
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * Project: Video
+ * Copyright (C) 2015  AHMCT, University of California
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package us.mn.state.dot.video;
+
+/**
+ * A fixed-size ring of sequence-numbered frames.  A DataSource publishes
+ * each new image into the ring and every DataSink reads from it at its
+ * own pace, so a slow sink never holds up the source or other sinks.
+ * Readers never lock; the ring monitor is only used by the publisher and
+ * by readers waiting for a newer frame.
+ *
+ * The ring holds one reference to each frame it retains and releases it
+ * when the slot is overwritten.  Readers must retain a frame while using
+ * it; see acquireLatest().
+ */
+public class FrameRing {
+
+	/** Default number of frames retained */
+	public static final int DEFAULT_SIZE = 8;
+
+	/** Frame slots, indexed by sequence number modulo size */
+	private final Frame[] slots;
+
+	/** Sequence number of the most recently published frame */
+	private volatile long head = -1;
+
+	/** Create a ring with the default size */
+	public FrameRing() {
+		this(DEFAULT_SIZE);
+	}
+
+	/** Create a ring retaining the given number of frames */
+	public FrameRing(int size) {
+		slots = new Frame[size > 0 ? size : DEFAULT_SIZE];
+	}
+
+	/** Get the slot index for a sequence number */
+	private int slot(long seq) {
+		return (int)(seq % slots.length);
+	}
+
+	/** Publish a new image into the ring.  The image is copied, so
+	 * the array may be reused as soon as this returns.
+	 * @return The published frame. */
+	public synchronized Frame put(byte[] data) {
+		Frame prev = getHeadFrame();
+		// sources re-publish their latest image to keep slow streams
+		// alive; reuse the encoded body part in that case
+		if(prev != null && prev.isFrom(data))
+			return publish(prev.repeat(head + 1));
+		return publish(new Frame(head + 1, data));
+	}
+
+	/** Publish an image from a region of a buffer.  The image is copied,
+	 * so the buffer may be reused as soon as this returns.
+	 * @return The published frame. */
+	public synchronized Frame put(byte[] buf, int off, int len) {
+		return publish(new Frame(head + 1, buf, off, len));
+	}
+
+	/** Publish an image held in a frame buffer.  The ring takes over the
+	 * caller's reference to the buffer.
+	 * @return The published frame. */
+	synchronized Frame put(FrameBuffer fb) {
+		return publish(new Frame(head + 1, fb));
+	}
+
+	/** Re-publish the newest image with a new sequence number.
+	 * @return The published frame, or null if the ring is empty. */
+	public synchronized Frame repeat() {
+		Frame prev = getHeadFrame();
+		if(prev == null)
+			return null;
+		return publish(prev.repeat(head + 1));
+	}
+
+	/** Get the newest frame; only called with the ring monitor held */
+	private Frame getHeadFrame() {
+		return head >= 0 ? slots[slot(head)] : null;
+	}
+
+	/** Store a frame, releasing the one it replaces, and wake up
+	 * waiting readers */
+	private Frame publish(Frame f) {
+		long seq = f.getSequence();
+		int i = slot(seq);
+		Frame old = slots[i];
+		slots[i] = f;
+		head = seq;
+		if(old != null)
+			old.release();
+		notifyAll();
+		return f;
+	}
+
+	/** Release all frames held by the ring */
+	public synchronized void clear() {
+		for(int i = 0; i < slots.length; i++) {
+			if(slots[i] != null) {
+				slots[i].release();
+				slots[i] = null;
+			}
+		}
+	}
+
+	/** Get the sequence number of the newest frame, or -1 if none */
+	public long getHead() {
+		return head;
+	}
+
+	/** Get the newest frame, or null if nothing has been published.
+	 * No reference is taken; see acquireLatest(). */
+	public Frame getLatest() {
+		while(true) {
+			long h = head;
+			if(h < 0)
+				return null;
+			Frame f = get(h);
+			// a null frame means the slot was reused while
+			// reading (retry with the new head), or the ring
+			// was cleared
+			if(f != null || h == head)
+				return f;
+		}
+	}
+
+	/** Get the newest frame with a reference held for the caller.
+	 * @return The frame, which the caller must release, or null if
+	 *         nothing has been published */
+	public Frame acquireLatest() {
+		while(true) {
+			Frame f = getLatest();
+			if(f == null || f.retain())
+				return f;
+		}
+	}
+
+	/** Get the frame with the given sequence number.
+	 * @return The frame, or null if it has been overwritten or has not
+	 *         been published yet. */
+	public Frame get(long seq) {
+		if(seq < 0 || seq > head)
+			return null;
+		Frame f = slots[slot(seq)];
+		if(f == null || f.getSequence() != seq)
+			return null;
+		return f;
+	}
+
+	/** Wait for a frame newer than the given sequence number.  The
+	 * frame is returned without a reference; see acquireLatest().
+	 * @param seq Sequence number of the last frame seen by the caller.
+	 * @param timeout Maximum time to wait (ms).
+	 * @return The newest frame, or null if none arrived in time. */
+	public Frame awaitNewer(long seq, long timeout)
+		throws InterruptedException
+	{
+		if(head <= seq) {
+			long end = System.currentTimeMillis() + timeout;
+			synchronized(this) {
+				long rem = timeout;
+				while(head <= seq && rem > 0) {
+					wait(rem);
+					rem = end - System.currentTimeMillis();
+				}
+			}
+		}
+		if(head <= seq)
+			return null;
+		return getLatest();
+	}
+}
@@ -21,11 +21,13 @@ package us.mn.state.dot.video;
 
 import java.lang.NumberFormatException;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.ArrayList;
 import java.util.Properties;
 import java.util.Set;
 import java.util.logging.Logger;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -38,12 +40,15 @@ import java.util.concurrent.ConcurrentHashMap;
 public class GroupManager {
 
 
-// FIXME:
-// the (lack of) concurrency design here is a complete mess.
-// reexamine concurrency assumptions, what methods are intended
-// to be called from a thread-safe context, etc.
-// consider what to lock on, what to shallow/deep copy, etc.
-// too many methods are synchronized.
+// concurrency: groups and the camera->group index are only written while
+// loading the configuration.  each camera has a reference count of its
+// active connections, and each group counts its members with at least
+// one.  the counts of a grouped camera only change with its group
+// locked; ungrouped cameras need no lock.
+//
+// a group may have a bounded FIFO queue of waiting requests (see
+// awaitResource).  while anyone is queued, new cameras queue behind
+// them, and each freed slot is handed to the head of the queue.
 
 
 	private static GroupManager singletonInstance = null;
@@ -54,10 +59,19 @@ public class GroupManager {
 	// list of connection groups
 	static final private ArrayList<ConnGroup> conn_groups = new ArrayList<ConnGroup>();
 
+	// map of group names to groups
+	static final private HashMap<String, ConnGroup> group_names = new HashMap<String, ConnGroup>();
+
+	// map of cameras to their group
+	static final private HashMap<String, ConnGroup> camera_groups = new HashMap<String, ConnGroup>();
+
 	// map of stream ids to camera
 	static final private ConcurrentHashMap<Integer, String> conn_map = new ConcurrentHashMap<Integer, String>();
 
-	private int nextSerialNumber = 0;
+	// number of active connections by camera
+	static final private ConcurrentHashMap<String, AtomicInteger> cam_refs = new ConcurrentHashMap<String, AtomicInteger>();
+
+	private final AtomicInteger nextSerialNumber = new AtomicInteger();
 
 
 	/** Constructor (private) */
@@ -96,14 +110,17 @@ public class GroupManager {
 				if (cg == null) {
 					cg = new ConnGroup(groupName);
 					conn_groups.add(cg);
+					group_names.put(groupName, cg);
 				}
 				String entryList = props.getProperty("conngroup." + groupName + ".members");
 				if (entryList != null) {
 					String entries[] = entryList.split(",");	// untrimmed
 					for (String m : entries) {
 						String entry = m.trim();
-						if (!isCameraInGroup(entry))
+						if (!isCameraInGroup(entry)) {
 							cg.addMember(entry);
+							camera_groups.put(entry, cg);
+						}
 						else
 							logger.warning("Camera " + entry + " is already in a group.  Not adding to " + cg.getName());
 					}
@@ -117,6 +134,7 @@ public class GroupManager {
 				if (cg == null) {
 					cg = new ConnGroup(groupName);
 					conn_groups.add(cg);
+					group_names.put(groupName, cg);
 				}
 				String sMaxConn = props.getProperty("conngroup." + groupName + ".maxconn");
 				if (sMaxConn == null)
@@ -133,42 +151,69 @@ public class GroupManager {
 					cg.setConnLimit(maxConn.intValue());
 				}
 			}
+			// example: conngroup.pots.queue=4
+			// example: conngroup.pots.wait=10000
+			else if (s.matches("^conngroup\\.[^\\.]+\\.(queue|wait)$")) {
+				String[] fields = s.split("\\.", 3);
+				String groupName  = fields[1].trim();
+				ConnGroup cg = getGroupByName(groupName);
+				if (cg == null) {
+					cg = new ConnGroup(groupName);
+					conn_groups.add(cg);
+					group_names.put(groupName, cg);
+				}
+				Integer val = null;
+				try {
+					val = Integer.valueOf(props.getProperty(s).trim());
+				}
+				catch(NumberFormatException e) {
+					continue;
+				}
+				if (fields[2].equals("queue"))
+					cg.setQueueLimit(val.intValue());
+				else
+					cg.setQueueWait(val.intValue());
+			}
 
 		}
 	}
 
 
 	// get an array of the ConnGroup objects
-	// NOTE: should be a deep copy, but a shallow copy is okay for now because the ConnGroup objects don't really change
-		// after initialization...
-	// uses conn_groups
-	public synchronized ConnGroup[] getGroups() {
+	// NOTE: a shallow copy is okay because the groups don't change
+	// after initialization (only their counts do)
+	public ConnGroup[] getGroups() {
 		return conn_groups.toArray(new ConnGroup[0]);
 	}
 
 
-	// uses conn_groups
-	private synchronized ConnGroup getGroupByName(String n) {
+	// uses group_names
+	private ConnGroup getGroupByName(String n) {
 		if (n == null)
 			return null;
-		for (ConnGroup g : conn_groups) {
-			if (n.equals(g.getName()))
-				return g;
-		}
-		return null;
+		return group_names.get(n);
 	}
 
 
-	// uses nextSerialNumber
-	private synchronized int issueSerialNumber() {
-		++nextSerialNumber;
-		return (nextSerialNumber - 1);
+	private int issueSerialNumber() {
+		return nextSerialNumber.getAndIncrement();
+	}
+
+
+	// get the reference count of a camera, creating it if needed
+	private AtomicInteger getRefs(String cid) {
+		AtomicInteger r = cam_refs.get(cid);
+		if (r == null) {
+			cam_refs.putIfAbsent(cid, new AtomicInteger());
+			r = cam_refs.get(cid);
+		}
+		return r;
 	}
 
 
 	// uses conn_groups
 	// get an array of the group names
-	public synchronized String[] getGroupNames() {
+	public String[] getGroupNames() {
 		ArrayList<String> grps = new ArrayList<String>();
 		for (ConnGroup cg : conn_groups)
 			grps.add(cg.getName());
@@ -188,28 +233,16 @@ public class GroupManager {
 
 	// does Camera cid have an active (and tracked) connection?
 	public boolean hasActiveConnection(String cid) {
-		if (cid == null)
-			return false;
-		for (Integer id : conn_map.keySet()) {
-			if (cid.equals(conn_map.get(id)))
-				return true;
-		}
-		return false;
+		return getNumConnsForCamera(cid) > 0;
 	}
 
 
-	public synchronized HashMap<String, Integer> getActiveConnMap() {
+	public HashMap<String, Integer> getActiveConnMap() {
 		HashMap<String, Integer> conns = new HashMap<String, Integer>();
-		for (Integer serial : conn_map.keySet()) {
-			String cid = conn_map.get(serial);
-			// increment value in map, inferring 0 if not present
-			Integer accum = conns.get(cid);
-			int newval;
-			if (accum == null)
-				newval = 0 + 1;
-			else
-				newval = accum.intValue() + 1;
-			conns.put(cid, Integer.valueOf(newval));
+		for (String cid : cam_refs.keySet()) {
+			int n = cam_refs.get(cid).get();
+			if (n > 0)
+				conns.put(cid, Integer.valueOf(n));
 		}
 		return conns;
 	}
@@ -219,12 +252,7 @@ public class GroupManager {
 	public int getGroupUtil(ConnGroup cg) {
 		if (cg == null)
 			return -1;
-		int numConn = 0;
-		for (String m : cg.getMembers()) {
-			if (hasActiveConnection(m))
-				++numConn;
-		}
-		return numConn;
+		return cg.getActiveCount();
 	}
 
 
@@ -247,13 +275,7 @@ public class GroupManager {
 	public ConnGroup getGroupByCamera(String cid) {
 		if (cid == null)
 			return null;
-		for (ConnGroup cg : conn_groups) {
-			for (String m : cg.getMembers()) {
-				if (cid.equals(m))
-					return cg;
-			}
-		}
-		return null;
+		return camera_groups.get(cid);
 	}
 
 
@@ -261,44 +283,127 @@ public class GroupManager {
 	public int getNumConnsForCamera(String cid) {
 		if (cid == null)
 			return -1;
-		int numConn = 0;
-		for (Integer id : conn_map.keySet()) {
-			if (cid.equals(conn_map.get(id)))
-				++numConn;
-		}
-		return numConn;
+		AtomicInteger r = cam_refs.get(cid);
+		return (r != null) ? r.get() : 0;
+	}
+
+
+	// returns -1 on error, else serial #.  never waits.
+	public int requestResource(String cameraId) {
+		return requestResource(cameraId, false);
+	}
+
+
+	// like requestResource(), but waits in the group's queue (if it
+	// has one) when the group is full.  returns -1 if the queue is
+	// full or the wait times out.
+	public int awaitResource(String cameraId) {
+		return requestResource(cameraId, true);
 	}
 
 
-	// returns -1 on error, else serial #
-	public synchronized int requestResource(String cameraId) {
+	private int requestResource(String cameraId, boolean wait) {
 		if (cameraId == null)
 			return -1;
 
-		int serial = issueSerialNumber();
+		AtomicInteger refs = getRefs(cameraId);
 
 		// get camera's group
 		ConnGroup cg = getGroupByCamera(cameraId);
 		if (cg == null) {
-			conn_map.put(serial, cameraId);
-			return serial;		// if camera not in a group, just allow without any group accounting.
+			// if camera not in a group, just allow without any group accounting.
+			refs.incrementAndGet();
+			return issue(cameraId);
 		}
 
-		int groupLimit = cg.getConnLimit();
-		int gu = getGroupUtil(cg.getName());
-		if (gu >= groupLimit) {
-			return -1;
+		ConnGroup.Waiter w;
+		synchronized (cg) {
+			// a camera already connected doesn't use another
+			// distinct connection of its group
+			if (refs.get() > 0) {
+				refs.incrementAndGet();
+				return issue(cameraId);
+			}
+			if (cg.waiters.isEmpty() &&
+			    cg.getActiveCount() < cg.getConnLimit())
+			{
+				cg.addActive(1);
+				refs.incrementAndGet();
+				return issue(cameraId);
+			}
+			if (!wait || cg.waiters.size() >= cg.getQueueLimit())
+				return -1;
+			w = new ConnGroup.Waiter(cameraId);
+			cg.waiters.add(w);
+			long end = System.currentTimeMillis() + cg.getQueueWait();
+			try {
+				long left = cg.getQueueWait();
+				while (!w.granted && left > 0) {
+					cg.wait(left);
+					left = end - System.currentTimeMillis();
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (!w.granted) {
+				cg.waiters.remove(w);
+				return -1;
+			}
 		}
+		return issue(cameraId);
+	}
+
+
+	// record a granted request, returning its serial #
+	private int issue(String cameraId) {
+		int serial = issueSerialNumber();
 		conn_map.put(serial, cameraId);
 		return serial;
 	}
 
 
-	public synchronized boolean releaseResource(int serial) {
-		String cid = conn_map.get(serial);
+	// hand free slots to queued requests, oldest first.  a camera which
+	// is already connected needs no slot, so all of its waiters go too.
+	// called with the group locked.
+	private void grantWaiters(ConnGroup cg) {
+		boolean any = false;
+		Iterator<ConnGroup.Waiter> it = cg.waiters.iterator();
+		while (it.hasNext()) {
+			ConnGroup.Waiter w = it.next();
+			AtomicInteger refs = getRefs(w.cid);
+			if (refs.get() == 0) {
+				if (cg.getActiveCount() >= cg.getConnLimit())
+					continue;
+				cg.addActive(1);
+			}
+			refs.incrementAndGet();
+			w.granted = true;
+			it.remove();
+			any = true;
+		}
+		if (any)
+			cg.notifyAll();
+	}
+
+
+	public boolean releaseResource(int serial) {
+		String cid = conn_map.remove(serial);
 		if (cid == null)
 			return false;		// stream not registered
-		conn_map.remove(serial);
+		AtomicInteger refs = getRefs(cid);
+		ConnGroup cg = getGroupByCamera(cid);
+		if (cg == null) {
+			refs.decrementAndGet();
+			return true;
+		}
+		synchronized (cg) {
+			if (refs.decrementAndGet() == 0) {
+				cg.addActive(-1);
+				if (!cg.waiters.isEmpty())
+					grantWaiters(cg);
+			}
+		}
 		return true;
 	}
 
@@ -317,7 +422,7 @@ public class GroupManager {
 	}
 
 
-	public synchronized String getUsageString() {
+	public String getUsageString() {
 		String out = "";
 		out += "GroupManager status:";
 		boolean first = true;
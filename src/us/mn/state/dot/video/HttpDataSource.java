@@ -20,12 +20,13 @@
 
 package us.mn.state.dot.video;
 
-import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.concurrent.ScheduledFuture;
 import java.util.logging.Logger;
 
 /**
- * The HttpDataSource gets its data via the HTTP protocol
+ * The HttpDataSource gets its data via the HTTP protocol, reading an
+ * MJPEG stream with the non-blocking EncoderClient.
  *
  * @author Timothy Johnson
  * @author Travis Swanston
@@ -35,43 +36,24 @@ public class HttpDataSource extends AbstractDataSource {
 	/** Approximate minimum time (ms) between sink notifications */
 	private final static int NOTIFY_PERIOD = 50;
 
-	/** Most recent frame received */
-	private byte[] latest_img = LoadingImage.data;
-
 	/** Timestamp of most recent sink notification */
 	private long last_notify = -1;
 
-	/** Thread which handles sink notification */
-	private class Notifier extends Thread {
+	/** The stream being read, if any */
+	private volatile EncoderClient.Exchange exchange = null;
+
+	/** Task which re-notifies sinks */
+	private ScheduledFuture<?> notifier;
+
+	/** Task which re-notifies sinks when frames come in slowly */
+	private class Notifier implements Runnable {
 		public void run() {
-			logger.info("Starting: " + this);
-			while (true) {
-				if (done)
-					break;
-				if (!(this.isAlive()))
-					break;
-				if (Thread.interrupted())
-					break;
-				long delta = timeSinceLastNotify();
-				long sleep = 0;
-				if (delta >= NOTIFY_PERIOD) {
-					// frames seem to be coming in slowly;
-					// re-notify w/ current frame to avoid
-					// stream timeout
-					notifyWithLatest();
-					sleep = NOTIFY_PERIOD;
-				}
-				else {
-					sleep = delta;
-				}
-				try {
-					Thread.sleep(sleep);
-				}
-				catch (InterruptedException e) {
-					break;
-				}
+			if (timeSinceLastNotify() >= NOTIFY_PERIOD) {
+				// frames seem to be coming in slowly;
+				// re-notify w/ current frame to avoid
+				// stream timeout
+				notifyWithLatest();
 			}
-			logger.info("Stopping: " + this);
 		}
 	}
 
@@ -86,62 +68,99 @@ public class HttpDataSource extends AbstractDataSource {
 		super(c, l, m, url, user, pwd);
 	}
 
-	/** Start the stream. */
+	/** Start the stream.  Frames are read and published by the
+	 * EncoderClient; the source stops when the stream ends. */
 	public void run() {
-		HttpURLConnection conn = null;
 		if (url == null) {
 			logger.fine("No encoder defined for this source.");
 			return;
 		}
-		// start notifier thread
-		Thread notifier = new Notifier();
-		notifier.start();
-		try{
-			conn = ImageFactory.createConnection(url, user, password);
-			final MJPEGReader stream = new MJPEGReader(conn.getInputStream());
-			logger.fine("Starting: " + this);
-			byte[] img;
-			while (!done && this.isAlive()) {
-				if (stream == null) {
-					break;
-				}
-				img = stream.getImage();
-				if (img != null && img.length > 0) {
-					updateImage(img);
-					notifyWithLatest();	// notify immediately
-				}
-				else {
-					// FIXME: Continue trying to get images even if null or empty.
-					// Perhaps a counter can keep track of contiguous failures and
-					// then break.
+		// start notifier task
+		notifier = VideoExecutor.schedule(new Notifier(),
+			NOTIFY_PERIOD);
+		detach();
+		stream();
+	}
 
-					//break;
+	/** Open the stream from the source URL */
+	protected void stream() {
+		if (!openStream(url))
+			stop();
+	}
+
+	/** Open a stream URL.  Frames are published until it ends, the
+	 * source is halted, or keepReading() returns false; then
+	 * streamClosed() is called.
+	 * @return false if the stream could not be opened. */
+	protected final boolean openStream(URL u) {
+		try {
+			exchange = EncoderClient.stream(u, user, password,
+				new EncoderClient.StreamListener()
+			{
+				public void frame(byte[] buf, int off, int len) {
+					if (done || !keepReading()) {
+						dropStream();
+						return;
+					}
+					if (len > 0)
+						notifyWithFrame(buf, off, len);
 				}
-			}
+				public void closed(Exception e) {
+					exchange = null;
+					if (e != null)
+						logger.info(e.getMessage());
+					else
+						logger.fine("End of stream: " +
+							HttpDataSource.this);
+					streamClosed();
+				}
+			});
+			logger.fine("Starting: " + this);
+			return true;
 		}
-		catch(Exception e) {
+		catch (VideoException e) {
 			logger.info(e.getMessage());
+			return false;
 		}
-		finally {
-			notifier.interrupt();
-			logger.fine("Stopping: " + this);
-			try {
-				conn.disconnect();
-			}
-			catch(Exception e2) {
-			}
-			removeSinks();
-		}
 	}
 
-	/** Update the latest-image variable */
-	private synchronized void updateImage(byte[] img) {
-		latest_img = img;
+	/** Called when the stream has ended; stops the source */
+	protected void streamClosed() {
+		stop();
+	}
+
+	/** Stop the source */
+	protected final void stop() {
+		notifier.cancel(false);
+		logger.fine("Stopping: " + this);
+		removeSinks();
+		finish();
+	}
+
+	/** Check if the current stream should still be read */
+	protected boolean keepReading() {
+		return true;
+	}
+
+	/** Drop the stream being read, so that streamClosed() is called */
+	protected final void dropStream() {
+		EncoderClient.Exchange x = exchange;
+		if (x != null)
+			x.cancel();
+	}
+
+	/** Notify sinks with a frame just read from the stream */
+	private synchronized void notifyWithFrame(byte[] buf, int off,
+		int len)
+	{
+		notifySinks(buf, off, len);
+		last_notify = System.currentTimeMillis();
 	}
 
 	/** Notify sinks with latest image */
 	private synchronized void notifyWithLatest() {
-		notifySinks(latest_img);
+		if (!notifySinksAgain())
+			notifySinks(LoadingImage.data);
 		last_notify = System.currentTimeMillis();
 	}
 
@@ -19,26 +19,136 @@
 package us.mn.state.dot.video;
 
 import java.net.URL;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
 
+import javax.servlet.http.HttpServletResponse;
 import javax.xml.ws.http.HTTPException;
 
+/**
+ * A cache of still images.  The cache is bounded by a byte budget;
+ * idle entries expire, and the least recently used entries are evicted
+ * whenever the cached images exceed the budget.
+ */
 public class ImageCache {
 
-	private static HashMap<String, CacheEntry> cacheMap =
-		new HashMap<String, CacheEntry>();
+	private static final ConcurrentHashMap<String, CacheEntry> cacheMap =
+		new ConcurrentHashMap<String, CacheEntry>();
 
 	protected final long DEFAULT_CACHE_DURATION = 10000; //10 seconds
 	
 	protected long cacheDuration = DEFAULT_CACHE_DURATION;
+
+	/** Default time (ms) past expiration to serve a stale image */
+	protected final long DEFAULT_CACHE_GRACE = 30000;
+
+	protected long cacheGrace = DEFAULT_CACHE_GRACE;
+
+	/** Maximum number of queued background refreshes */
+	static private final int REFRESH_QUEUE = 256;
+
+	/** Counter for naming refresh threads */
+	static private final AtomicInteger count = new AtomicInteger();
+
+	/** Default maximum bytes held by cached images */
+	protected final long DEFAULT_CACHE_MAX_BYTES = 64L * 1024 * 1024;
+
+	protected long maxBytes = DEFAULT_CACHE_MAX_BYTES;
+
+	/** Default time (ms) after which an unrequested entry expires */
+	protected final long DEFAULT_CACHE_IDLE = 10 * 60 * 1000;
+
+	protected long idleAge = DEFAULT_CACHE_IDLE;
+
+	/** Time (ms) between periodic sweeps */
+	static private final long SWEEP_PERIOD = 60 * 1000;
+
+	/** Executor for background refreshes */
+	private final ThreadPoolExecutor refresher;
+
+	/** Executor for sweeping the cache and refreshing hot entries */
+	private final ScheduledThreadPoolExecutor sweeper;
+
+	/** Set while an over-budget sweep is queued */
+	private final AtomicBoolean sweepPending = new AtomicBoolean();
+
+	/** Bytes held by all cached images */
+	private final AtomicLong residentBytes = new AtomicLong();
+
+	/** Number of requests served without waiting for a fetch */
+	private final AtomicLong hits = new AtomicLong();
+
+	/** Number of requests which waited for a fetch */
+	private final AtomicLong misses = new AtomicLong();
+
+	/** Number of entries evicted */
+	private final AtomicLong evictions = new AtomicLong();
+
+	private final Logger logger = Logger.getLogger(Constants.LOGGER_NAME);
+
+	/** Group manager admitting encoder fetches (null for a proxy) */
+	private final GroupManager groupManager;
 	
 	private static ImageCache imageCache = null;
 	
 	protected ImageCache(Properties p){
+		groupManager = Boolean.parseBoolean(p.getProperty("proxy",
+			"false")) ? null : GroupManager.getGroupManager(p);
 		cacheDuration = Long.parseLong(
 				p.getProperty("video.cache.duration",
 				Long.toString(DEFAULT_CACHE_DURATION)));
+		cacheGrace = Long.parseLong(
+				p.getProperty("video.cache.grace",
+				Long.toString(DEFAULT_CACHE_GRACE)));
+		maxBytes = Long.parseLong(
+				p.getProperty("video.cache.max.bytes",
+				Long.toString(DEFAULT_CACHE_MAX_BYTES)));
+		idleAge = Long.parseLong(
+				p.getProperty("video.cache.idle",
+				Long.toString(DEFAULT_CACHE_IDLE)));
+		int n = Integer.parseInt(
+				p.getProperty("video.cache.threads", "4"));
+		refresher = new ThreadPoolExecutor(n, n, 0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(REFRESH_QUEUE),
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ImageCache-" +
+						count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		sweeper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ImageCacheSweeper");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		sweeper.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				sweep();
+				logger.info(getStatus());
+			}
+		}, SWEEP_PERIOD, SWEEP_PERIOD, TimeUnit.MILLISECONDS);
+		SnapshotRefresher sr = new SnapshotRefresher(p, cacheDuration,
+			cacheMap.values());
+		if(sr.isEnabled()){
+			sweeper.scheduleWithFixedDelay(sr, sr.getPeriod(),
+				sr.getPeriod(), TimeUnit.MILLISECONDS);
+		}
 	}
 	public static synchronized ImageCache create(Properties p){
 		if(imageCache == null){
@@ -46,20 +156,135 @@ public class ImageCache {
 		}
 		return imageCache;
 	}
+
+	/** Get the time (ms) for which a cached image is fresh */
+	public long getCacheDuration(){
+		return cacheDuration;
+	}
 	
-	private synchronized CacheEntry getEntry(String key, URL imageURL, ImageSize size, String user, String pass){
+	private CacheEntry getEntry(String key, URL imageURL, Client c, String user, String pass){
 		CacheEntry entry = cacheMap.get(key);
 		if(entry != null){
 			return entry;
 		}
-		entry = new CacheEntry(imageURL, user, pass, cacheDuration, size);
-		cacheMap.put(key, entry);
-		return entry;
+		entry = new CacheEntry(imageURL, user, pass, cacheDuration,
+			cacheGrace, c.getSize(), c.getCameraName(), this);
+		CacheEntry e = cacheMap.putIfAbsent(key, entry);
+		return (e != null) ? e : entry;
 	}
 	
-	public byte[] getImage(Client c, URL imageURL, String user, String pass) throws HTTPException, VideoException {
-		CacheEntry entry = getEntry(createCacheKey(c), imageURL, c.getSize(), user, pass);
-		return entry.getImage();
+	/** Get an image for a client.
+	 * @return The image, which the caller must release, or null. */
+	public Frame getFrame(Client c, URL imageURL, String user, String pass) throws HTTPException, VideoException {
+		String key = createCacheKey(c);
+		while(true){
+			CacheEntry entry = getEntry(key, imageURL, c, user, pass);
+			Frame f = entry.getFrame();
+			// retry if the entry was evicted during the fetch
+			if(f != null || !entry.isEvicted())
+				return f;
+		}
+	}
+
+	/** Take a group resource for fetching an image of a camera.
+	 * @param wait Whether to wait in the group's queue, if it has one.
+	 * @return The serial to give back, or -1 if none was needed.
+	 * @throws HTTPException (403) if the camera's group is full. */
+	int requestResource(String cid, boolean wait) throws HTTPException{
+		if(groupManager == null || cid == null)
+			return -1;
+		int serial = wait ? groupManager.awaitResource(cid) :
+			groupManager.requestResource(cid);
+		if(serial < 0)
+			throw new HTTPException(HttpServletResponse.SC_FORBIDDEN);
+		return serial;
+	}
+
+	/** Give back a group resource taken for a fetch */
+	void releaseResource(int serial){
+		if(serial >= 0)
+			groupManager.releaseResource(serial);
+	}
+
+	/** Run a background refresh */
+	void execute(Runnable r){
+		refresher.execute(r);
+	}
+
+	/** Count a request as a hit or a miss */
+	void recordLookup(boolean hit){
+		if(hit)
+			hits.incrementAndGet();
+		else
+			misses.incrementAndGet();
+	}
+
+	/** Adjust the resident byte count, sweeping if over budget */
+	void addResidentBytes(long delta){
+		if(residentBytes.addAndGet(delta) > maxBytes &&
+		   sweepPending.compareAndSet(false, true))
+		{
+			sweeper.execute(new Runnable() {
+				public void run() {
+					sweepPending.set(false);
+					sweep();
+				}
+			});
+		}
+	}
+
+	/** An entry considered for eviction, with its access time fixed */
+	static private final class Candidate implements Comparable<Candidate> {
+		final String key;
+		final CacheEntry entry;
+		final long access;
+		Candidate(String k, CacheEntry e){
+			key = k;
+			entry = e;
+			access = e.getLastAccess();
+		}
+		public int compareTo(Candidate o){
+			return (access < o.access) ? -1 :
+				((access == o.access) ? 0 : 1);
+		}
+	}
+
+	/** Expire idle entries, then evict the least recently used
+	 * entries until the cache is within its byte budget. */
+	private void sweep(){
+		long now = System.currentTimeMillis();
+		ArrayList<Candidate> live = new ArrayList<Candidate>();
+		for(Map.Entry<String, CacheEntry> me: cacheMap.entrySet()){
+			Candidate c = new Candidate(me.getKey(), me.getValue());
+			if(now - c.access > idleAge)
+				evict(c);
+			else
+				live.add(c);
+		}
+		if(residentBytes.get() <= maxBytes)
+			return;
+		Collections.sort(live);
+		for(Candidate c: live){
+			if(residentBytes.get() <= maxBytes)
+				break;
+			evict(c);
+		}
+	}
+
+	/** Evict one entry */
+	private void evict(Candidate c){
+		if(cacheMap.remove(c.key, c.entry)){
+			c.entry.dispose();
+			evictions.incrementAndGet();
+		}
+	}
+
+	/** Get a description of the cache state */
+	public String getStatus(){
+		return "ImageCache: " + cacheMap.size() + " entries, " +
+			residentBytes.get() + " bytes, " + hits.get() +
+			" hits, " + misses.get() + " misses, " + evictions.get() +
+			" evictions.";
 	}
 
 	private static String createCacheKey(Client c){
@@ -20,13 +20,11 @@
 
 package us.mn.state.dot.video;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.net.HttpURLConnection;
-import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import javax.xml.ws.http.HTTPException;
@@ -73,33 +71,78 @@ abstract public class ImageFactory {
 	 */
 	public static byte[] getImage(URL url, String user, String pwd)
 			throws HTTPException, VideoException{
-		InputStream in = null;
+		Frame f = getFrame(url, user, pwd);
 		try{
-			HttpURLConnection c = createConnection(url, user, pwd);
-			int response = c.getResponseCode();
-			if(response != 200){
-				throw new HTTPException(response);
-			}
-			in = c.getInputStream();
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			byte[] data = new byte[1024];
-			int bytesRead = 0;
-			while(true){
-				bytesRead = in.read(data);
-				if(bytesRead==-1) break;
-				bos.write(data, 0, bytesRead);
-			}
-			return bos.toByteArray();
-		}catch(SocketTimeoutException ste){
-			throw new HTTPException(504); //Gateway Timeout
-		}catch(IOException ioe){
-			throw new HTTPException(504);
+			return f.getData();
 		}finally{
+			f.release();
+		}
+	}
+
+	/** Result of a fetch, waited on by the requesting thread */
+	static private final class FetchResult
+		implements EncoderClient.FetchListener
+	{
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private FrameBuffer image = null;
+		private int status = -1;
+		private boolean abandoned = false;
+
+		public synchronized void fetched(FrameBuffer fb) {
+			if(abandoned)
+				fb.release();
+			else
+				image = fb;
+			latch.countDown();
+		}
+
+		public synchronized void failed(int sc, Exception e) {
+			status = sc;
+			latch.countDown();
+		}
+
+		/** Wait for the image.
+		 * @return The image.
+		 * @throws HTTPException if the fetch failed or timed out. */
+		FrameBuffer await(long timeout) throws HTTPException {
 			try{
-				in.close();
-			}catch(Exception e2){
+				latch.await(timeout, TimeUnit.MILLISECONDS);
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
 			}
+			synchronized(this) {
+				abandoned = true;
+				if(image != null)
+					return image;
+				//Gateway Timeout if no status
+				throw new HTTPException(status > 0 ? status : 504);
+			}
+		}
+	}
+
+	/**
+	 * Get an image from the given url, read into a pooled frame buffer.
+	 * The image is fetched with the EncoderClient over a persistent
+	 * connection, when the server allows it.
+	 * @param url The location of the image file
+	 * @return A Frame containing the image data, which the caller must
+	 *         release.
+	 * @throws HTTPException
+	 */
+	public static Frame getFrame(URL url, String user, String pwd)
+			throws HTTPException, VideoException{
+		FetchResult r = new FetchResult();
+		EncoderClient.Exchange x = EncoderClient.fetch(url, user, pwd,
+			true, r);
+		FrameBuffer fb;
+		try{
+			fb = r.await(VideoThread.getConnTimeout() +
+				VideoThread.getReadTimeout());
+		}catch(HTTPException e){
+			x.cancel();
+			throw e;
 		}
+		return new Frame(-1, fb);
 	}
 
 	/** Prepare a connection by setting necessary properties and timeouts */
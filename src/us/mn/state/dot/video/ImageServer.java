@@ -79,26 +79,34 @@ public final class ImageServer extends VideoServlet{
 			response.setStatus(HttpServletResponse.SC_FORBIDDEN);
 			return;
 		}
-		byte[] image = null;
+		Frame image = null;
 		try{
-			image = imageCache.getImage(c, imageURL, user, pass);
+			// a running stream of this camera saves a request to
+			// the encoder
+			image = DataSourceFactory.getLiveFrame(c,
+				imageCache.getCacheDuration());
+			if(image == null)
+				image = imageCache.getFrame(c, imageURL, user, pass);
 			if(image == null){
 				response.setStatus(HttpServletResponse.SC_NOT_FOUND);
 				return;
 			}
 			response.setStatus(HttpServletResponse.SC_OK);
 			response.setContentType("image/jpeg\r\n");
-			response.setContentLength(image.length);
+			response.setContentLength(image.getDataLength());
 			Calendar cal = Calendar.getInstance();
 			Constants.LAST_MODIFIED_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
 			response.setHeader("Last-Modified", Constants.LAST_MODIFIED_FORMAT.format(cal.getTime()));
-			response.getOutputStream().write(image);
+			image.writeData(response.getOutputStream());
 		}catch(HTTPException httpEx){
 			response.setStatus(httpEx.getStatusCode());
 		}catch(Throwable t){
 			t.printStackTrace();
 			logger.warning("Exception serving image " + c.getCameraName() +
 					" to client " + c.getHost());
+		}finally{
+			if(image != null)
+				image.release();
 		}
 	}
 
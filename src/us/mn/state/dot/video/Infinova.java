@@ -34,6 +34,9 @@ public final class Infinova extends AbstractEncoder {
 	private final String BASE_IMAGE_URI = "/jpgimage/1/image.jpg";
 	
 	private final String BASE_STREAM_URI = "/jpgimage/1/image.jpg";
+
+	/** Default period of time (ms) between image requests */
+	static private final int DEFAULT_PERIOD = 200;
 	
 	/** Constructor for the Infinova encoder object */
 	public Infinova(String host, String user, String pass) {
@@ -85,7 +88,9 @@ public final class Infinova extends AbstractEncoder {
 		URL url = getStreamURL(c);
 		if(url == null) return null;
 		try{
-			return new MultiRequestDataSource(c, url, username, password);
+			return new MultiRequestDataSource(c, url, username, password,
+				PropertiesContext.getIntProp("infinova.jpegperiod",
+				DEFAULT_PERIOD));
 		}catch(Exception e){
 			throw new VideoException(e.getMessage());
 		}
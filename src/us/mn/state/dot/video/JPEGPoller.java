@@ -0,0 +1,350 @@
+/*
+ * Project: Video
+ * Copyright (C) 2015  AHMCT, University of California
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package us.mn.state.dot.video;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * The JPEGPoller owns the polling of all snapshot-only cameras.  Each
+ * polled camera is a Job with a deadline on a timer wheel.  Deadlines are
+ * jittered so cameras started together drift apart, fetches are started
+ * by a small bounded pool, and the number of fetches in flight is capped
+ * both overall and per encoder.  A job whose encoder is busy waits for
+ * the next tick.
+ */
+final class JPEGPoller {
+
+	/** Property name for the number of fetch starting threads */
+	static public final String PROP_THREADS = "video.poll.threads";
+
+	/** Property name for the maximum fetches in flight */
+	static public final String PROP_MAX = "video.poll.max";
+
+	/** Property name for the maximum fetches in flight per encoder */
+	static public final String PROP_PER_ENCODER = "video.poll.per.encoder";
+
+	/** Property name for the jitter (percent of the period) */
+	static public final String PROP_JITTER = "video.poll.jitter";
+
+	/** Length (ms) of one wheel tick */
+	static private final int TICK = 20;
+
+	/** Number of slots on the wheel (a power of two) */
+	static private final int SLOTS = 512;
+
+	/** Logger */
+	static private final Logger logger =
+		Logger.getLogger(Constants.LOGGER_NAME);
+
+	/** Maximum fetches in flight */
+	static private final int MAX_FETCHES = Math.max(1,
+		PropertiesContext.getIntProp(PROP_MAX, 64));
+
+	/** Maximum fetches in flight per encoder */
+	static private final int MAX_PER_ENCODER = Math.max(1,
+		PropertiesContext.getIntProp(PROP_PER_ENCODER, 1));
+
+	/** Jitter, as a fraction of the period */
+	static private final float JITTER = Math.min(50, Math.max(0,
+		PropertiesContext.getIntProp(PROP_JITTER, 10))) / 100f;
+
+	/** The wheel, with one list of jobs per slot */
+	static private final ArrayList<ArrayList<Job>> wheel =
+		createWheel();
+
+	/** Jobs waiting to be put on the wheel */
+	static private final ConcurrentLinkedQueue<Job> pending =
+		new ConcurrentLinkedQueue<Job>();
+
+	/** Number of fetches in flight */
+	static private final AtomicInteger fetching = new AtomicInteger();
+
+	/** Number of fetches in flight per encoder (host:port) */
+	static private final ConcurrentHashMap<String, AtomicInteger>
+		encoders = new ConcurrentHashMap<String, AtomicInteger>();
+
+	/** Pool starting fetches (which may need a DNS lookup) */
+	static private final ThreadPoolExecutor workers = createWorkers();
+
+	/** Time (ms) of tick zero */
+	static private final long epoch = System.currentTimeMillis();
+
+	/** Current tick (only used on the wheel thread) */
+	static private long tick = 0;
+
+	/** Thread turning the wheel */
+	static private final Thread thread = createThread();
+
+	/** Create the wheel */
+	static private ArrayList<ArrayList<Job>> createWheel() {
+		ArrayList<ArrayList<Job>> w =
+			new ArrayList<ArrayList<Job>>(SLOTS);
+		for(int i = 0; i < SLOTS; i++)
+			w.add(new ArrayList<Job>());
+		return w;
+	}
+
+	/** Create the fetch starting pool */
+	static private ThreadPoolExecutor createWorkers() {
+		int n = Math.max(1, PropertiesContext.getIntProp(PROP_THREADS,
+			2));
+		return new ThreadPoolExecutor(n, n, 60, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(MAX_FETCHES),
+			new ThreadFactory() {
+				private final AtomicInteger count =
+					new AtomicInteger();
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "JPEGPoller-" +
+						count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	}
+
+	/** Create and start the wheel thread */
+	static private Thread createThread() {
+		Thread t = new Thread("JPEGPollerWheel") {
+			public void run() {
+				turn();
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+
+	/** Don't allow instantiation */
+	private JPEGPoller() { }
+
+	/** Start polling a camera.  The first fetch starts at a random
+	 * point within the first period.
+	 * @param url Image URL.
+	 * @param user User name (may be null).
+	 * @param pwd Password.
+	 * @param keepAlive Whether to reuse the connection.
+	 * @param period Time (ms) between the starts of fetches.
+	 * @param l Listener receiving each image or failure.
+	 * @return The job, to be cancelled when polling should stop. */
+	static Job start(URL url, String user, String pwd, boolean keepAlive,
+		int period, EncoderClient.FetchListener l)
+	{
+		Job j = new Job(url, user, pwd, keepAlive, period, l);
+		j.deadline = System.currentTimeMillis() +
+			(long)(Math.random() * j.period);
+		pending.add(j);
+		return j;
+	}
+
+	/** Turn the wheel, one slot per tick */
+	static private void turn() {
+		while(true) {
+			long next = epoch + (tick + 1) * TICK;
+			long now = System.currentTimeMillis();
+			try {
+				if(next > now)
+					Thread.sleep(next - now);
+				addPending();
+				expire(wheel.get((int)(tick & (SLOTS - 1))));
+			}
+			catch(InterruptedException e) {
+				// keep turning
+			}
+			catch(RuntimeException e) {
+				logger.warning("JPEGPoller: " + e);
+			}
+			tick++;
+		}
+	}
+
+	/** Put pending jobs on the wheel */
+	static private void addPending() {
+		Job j = pending.poll();
+		while(j != null) {
+			if(!j.cancelled)
+				place(j);
+			j = pending.poll();
+		}
+	}
+
+	/** Put a job in the slot for its deadline.  Jobs are placed before
+	 * the current slot is expired, so that slot's visit this tick counts
+	 * as one of the job's rounds. */
+	static private void place(Job j) {
+		long t = Math.max(tick + 1, (j.deadline - epoch) / TICK);
+		j.rounds = (t - tick) / SLOTS;
+		wheel.get((int)(t & (SLOTS - 1))).add(j);
+	}
+
+	/** Start the jobs in a slot which are due */
+	static private void expire(ArrayList<Job> slot) {
+		ArrayList<Job> busy = null;
+		int n = 0;
+		for(int i = 0; i < slot.size(); i++) {
+			Job j = slot.get(i);
+			if(j.cancelled)
+				continue;
+			if(j.rounds > 0) {
+				j.rounds--;
+				slot.set(n++, j);
+			} else if(!begin(j)) {
+				if(busy == null)
+					busy = new ArrayList<Job>();
+				busy.add(j);
+			}
+		}
+		while(slot.size() > n)
+			slot.remove(slot.size() - 1);
+		if(busy != null) {
+			for(Job j: busy) {
+				j.rounds = 0;
+				wheel.get((int)((tick + 1) & (SLOTS - 1))).add(j);
+			}
+		}
+	}
+
+	/** Begin a fetch for a due job.
+	 * @return false if the fetch must wait for a later tick. */
+	static private boolean begin(final Job j) {
+		if(!acquire(j))
+			return false;
+		j.started = System.currentTimeMillis();
+		try {
+			workers.execute(new Runnable() {
+				public void run() {
+					fetch(j);
+				}
+			});
+			return true;
+		}
+		catch(RejectedExecutionException e) {
+			release(j);
+			return false;
+		}
+	}
+
+	/** Take a fetch slot, overall and for the encoder of a job */
+	static private boolean acquire(Job j) {
+		if(fetching.incrementAndGet() > MAX_FETCHES) {
+			fetching.decrementAndGet();
+			return false;
+		}
+		AtomicInteger c = encoders.get(j.hostKey);
+		if(c == null) {
+			encoders.putIfAbsent(j.hostKey, new AtomicInteger());
+			c = encoders.get(j.hostKey);
+		}
+		if(c.incrementAndGet() > MAX_PER_ENCODER) {
+			c.decrementAndGet();
+			fetching.decrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/** Give back the fetch slots of a job */
+	static private void release(Job j) {
+		encoders.get(j.hostKey).decrementAndGet();
+		fetching.decrementAndGet();
+	}
+
+	/** Start the fetch of a job (on a worker thread) */
+	static private void fetch(Job j) {
+		try {
+			EncoderClient.fetch(j.url, j.user, j.pwd, j.keepAlive, j);
+		}
+		catch(VideoException e) {
+			j.failed(0, e);
+		}
+	}
+
+	/** Schedule the next fetch of a job, one period (give or take the
+	 * jitter) after the start of the last one */
+	static private void reschedule(Job j) {
+		if(j.cancelled)
+			return;
+		float jitter = JITTER * (2 * (float)Math.random() - 1);
+		j.deadline = j.started + Math.round(j.period * (1 + jitter));
+		pending.add(j);
+	}
+
+	/** A camera being polled */
+	static final class Job implements EncoderClient.FetchListener {
+		private final URL url;
+		private final String user;
+		private final String pwd;
+		private final boolean keepAlive;
+		private final int period;
+		private final String hostKey;
+		private final EncoderClient.FetchListener listener;
+		private volatile boolean cancelled = false;
+		private long deadline;
+		private long rounds;
+		private volatile long started;
+
+		private Job(URL u, String us, String pw, boolean ka, int p,
+			EncoderClient.FetchListener l)
+		{
+			url = u;
+			user = us;
+			pwd = pw;
+			keepAlive = ka;
+			period = Math.max(TICK, p);
+			int port = u.getPort() < 0 ? u.getDefaultPort() :
+				u.getPort();
+			hostKey = u.getHost() + ":" + port;
+			listener = l;
+		}
+
+		/** Stop polling.  A fetch in flight still completes. */
+		void cancel() {
+			cancelled = true;
+		}
+
+		public void fetched(FrameBuffer fb) {
+			release(this);
+			try {
+				listener.fetched(fb);
+			}
+			finally {
+				reschedule(this);
+			}
+		}
+
+		public void failed(int status, Exception e) {
+			release(this);
+			try {
+				listener.failed(status, e);
+			}
+			finally {
+				reschedule(this);
+			}
+		}
+	}
+}
@@ -0,0 +1,264 @@
+/*
+ * Project: Video
+ * Copyright (C) 2015  AHMCT, University of California
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package us.mn.state.dot.video;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * The JPEGScaler scales JPEG images down to an image size.  The source
+ * is decoded with subsampling, so only about as many pixels as the
+ * target needs are converted, then drawn to the target size with
+ * bilinear interpolation and encoded at the quality configured for the
+ * size.  Readers, writers, rasters and output buffers are reused from a
+ * small pool, which is emptied when the servlets are destroyed.
+ */
+final class JPEGScaler {
+
+	/** Default JPEG quality (percent) */
+	static private final int DEFAULT_QUALITY = 75;
+
+	/** Encoding quality for each image size */
+	static private final float[] quality =
+		new float[ImageSize.values().length];
+
+	static {
+		for(ImageSize s: ImageSize.values()) {
+			int q = PropertiesContext.getIntProp("video.jpeg.quality." +
+				s.name().toLowerCase(), DEFAULT_QUALITY);
+			quality[s.ordinal()] = Math.max(1, Math.min(q, 100)) / 100f;
+		}
+	}
+
+	/** Output buffer which exposes its array */
+	static private final class OutputBuffer extends ByteArrayOutputStream {
+		OutputBuffer() {
+			super(64 * 1024);
+		}
+		byte[] getArray() {
+			return buf;
+		}
+	}
+
+	/** Codec state used by one thread at a time */
+	static private final class Codec {
+		final ImageReader reader = getReader();
+		final ImageWriter writer = getWriter();
+		final OutputBuffer out = new OutputBuffer();
+
+		/** Decoded (subsampled) image, reused if the size matches */
+		BufferedImage decoded;
+
+		/** Scaled images, one for each image size */
+		final BufferedImage[] scaled =
+			new BufferedImage[ImageSize.values().length];
+
+		/** Get a scaled image for a size */
+		BufferedImage getScaled(ImageSize s) {
+			BufferedImage bi = scaled[s.ordinal()];
+			if(bi == null) {
+				Dimension d = s.getDimension();
+				bi = new BufferedImage(d.width, d.height,
+					BufferedImage.TYPE_3BYTE_BGR);
+				scaled[s.ordinal()] = bi;
+			}
+			return bi;
+		}
+
+		/** Release the reader and writer */
+		void dispose() {
+			reader.dispose();
+			writer.dispose();
+		}
+
+		/** Get a decode destination of a type and size */
+		BufferedImage getDecoded(ImageTypeSpecifier t, int w, int h) {
+			BufferedImage bi = decoded;
+			if(bi == null || bi.getWidth() != w ||
+			   bi.getHeight() != h ||
+			   bi.getType() != t.getBufferedImageType())
+			{
+				bi = t.createBufferedImage(w, h);
+				decoded = bi;
+			}
+			return bi;
+		}
+	}
+
+	/** Most idle codecs kept in the pool */
+	static private final int MAX_IDLE =
+		Runtime.getRuntime().availableProcessors();
+
+	/** Idle codecs */
+	static private final ConcurrentLinkedQueue<Codec> idle =
+		new ConcurrentLinkedQueue<Codec>();
+
+	/** Number of idle codecs */
+	static private final AtomicInteger n_idle = new AtomicInteger();
+
+	/** Take an idle codec, or create one */
+	static private Codec borrow() {
+		Codec c = idle.poll();
+		if(c != null) {
+			n_idle.decrementAndGet();
+			return c;
+		}
+		return new Codec();
+	}
+
+	/** Return a codec to the pool, or dispose of it if the pool is
+	 * full */
+	static private void giveBack(Codec c) {
+		if(n_idle.incrementAndGet() <= MAX_IDLE)
+			idle.offer(c);
+		else {
+			n_idle.decrementAndGet();
+			c.dispose();
+		}
+	}
+
+	/** Dispose of the idle codecs */
+	static void dispose() {
+		Codec c = idle.poll();
+		while(c != null) {
+			n_idle.decrementAndGet();
+			c.dispose();
+			c = idle.poll();
+		}
+	}
+
+	static private ImageReader getReader() {
+		Iterator<ImageReader> it = ImageIO.getImageReadersByFormatName(
+			"jpeg");
+		return it.next();
+	}
+
+	static private ImageWriter getWriter() {
+		Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName(
+			"jpeg");
+		return it.next();
+	}
+
+	/** Don't allow instantiation */
+	private JPEGScaler() { }
+
+	/** Scale an image down to an image size.
+	 * @param f The image.
+	 * @param size The image size.
+	 * @return A new frame holding the scaled image. */
+	static Frame scale(Frame f, ImageSize size) throws IOException {
+		Codec c = borrow();
+		try {
+			return scale(c, f, size);
+		}
+		finally {
+			giveBack(c);
+		}
+	}
+
+	/** Scale an image down with a codec */
+	static private Frame scale(Codec c, Frame f, ImageSize size)
+		throws IOException
+	{
+		BufferedImage src = decode(c, f, size.getDimension());
+		Dimension d = size.getDimension();
+		BufferedImage dst = src;
+		if(src.getWidth() != d.width || src.getHeight() != d.height) {
+			dst = c.getScaled(size);
+			Graphics2D g = dst.createGraphics();
+			try {
+				g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+					RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+				g.drawImage(src, 0, 0, d.width, d.height, null);
+			}
+			finally {
+				g.dispose();
+			}
+		}
+		return encode(c, dst, quality[size.ordinal()]);
+	}
+
+	/** Decode an image, subsampled to no less than a dimension */
+	static private BufferedImage decode(Codec c, Frame f, Dimension d)
+		throws IOException
+	{
+		ImageInputStream in = new MemoryCacheImageInputStream(
+			new ByteArrayInputStream(f.getPart(), f.getDataOffset(),
+			f.getDataLength()));
+		ImageReader r = c.reader;
+		try {
+			r.setInput(in, true, true);
+			int w = r.getWidth(0);
+			int h = r.getHeight(0);
+			int s = Math.max(1, Math.min(w / d.width, h / d.height));
+			ImageTypeSpecifier t = r.getImageTypes(0).next();
+			ImageReadParam p = r.getDefaultReadParam();
+			p.setSourceSubsampling(s, s, 0, 0);
+			p.setDestination(c.getDecoded(t, (w + s - 1) / s,
+				(h + s - 1) / s));
+			return r.read(0, p);
+		}
+		finally {
+			r.setInput(null);
+			in.close();
+		}
+	}
+
+	/** Encode an image at a quality */
+	static private Frame encode(Codec c, BufferedImage bi, float q)
+		throws IOException
+	{
+		c.out.reset();
+		ImageOutputStream out = new MemoryCacheImageOutputStream(c.out);
+		ImageWriter w = c.writer;
+		try {
+			w.setOutput(out);
+			ImageWriteParam p = w.getDefaultWriteParam();
+			p.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			p.setCompressionQuality(q);
+			w.write(null, new IIOImage(bi, null, null), p);
+			out.flush();
+		}
+		finally {
+			w.setOutput(null);
+			out.close();
+		}
+		return new Frame(-1, c.out.getArray(), 0, c.out.size());
+	}
+}
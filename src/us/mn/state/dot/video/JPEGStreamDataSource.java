@@ -19,13 +19,9 @@
 
 package us.mn.state.dot.video;
 
-import java.io.InputStream;
-import java.io.IOException;
-import java.lang.InterruptedException;
-import java.lang.NumberFormatException;
-import java.lang.Thread;
-import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * The JPEGStreamDataSource is a customized version of Timothy Johnson's
@@ -48,119 +44,67 @@ public class JPEGStreamDataSource extends AbstractDataSource {
 	/** Period of time (ms) between sink notifications */
 	private final static int NOTIFY_PERIOD = 50;
 
-	/** Default period of time (ms) to pause between image fetches */
+	/** Default period of time (ms) between image fetches */
 	private final static int DEFAULT_FETCH_PERIOD = 100;
 
-	/** Period of time (ms) to pause between image fetches */
+	/** Period of time (ms) between image fetches */
 	private final int fetch_period;
 
-	/** The most recently read image */
-	byte[] latest_img = null;
+	/** Number of consecutive failed fetches */
+	private int fail = 0;
 
-	/** Thread which handles reading images */
-	private class Fetcher extends Thread {
-		public void run() {
-			HttpURLConnection conn = null;
-			InputStream in = null;
-			logger.info("Starting: " + this);
-			int fail = 0;
-			boolean first = true;
-			while (true) {
-				if (done)
-					break;
-				if (!(this.isAlive()))
-					break;
-				if (Thread.interrupted())
-					break;
-				if (fail >= MAX_CONS_FAILS)
-					break;
-				if (conn != null)
-					conn.disconnect();
-				try {
-					if (!first)
-						Thread.sleep(fetch_period);
-				}
-				catch (InterruptedException e) {
-					halt();		// sets done
-				}
-				first = false;
-				try {
-					conn = ImageFactory.createConnection(
-						url, user, password);
-				}
-				catch (VideoException e) {
-					logger.warning(e.getMessage());
-					++fail;
-					continue;
-				}
-				if (conn == null) {
-					logger.warning("Error creating " +
-						"connection.");
-					++fail;
-					continue;
-				}
-				int response = -1;
-				try {
-					response = conn.getResponseCode();
-				}
-				catch (IOException e) {
-					logger.warning("Error getting " +
-						"response code");
-					++fail;
-					continue;
-				}
-				if (response != 200) {
-					logger.warning("HTTP response: " +
-						response);
-					++fail;
-					continue;
-				}
-				try {
-					in = conn.getInputStream();
-				}
-				catch (IOException e) {
-					logger.warning(e.getMessage());
-					++fail;
-					continue;
-				}
-				int length = -1;
-				try {
-					length = Integer.parseInt(
-						conn.getHeaderField(
-						"Content-Length"));
-				}
-				catch (NumberFormatException e) {
-					logger.warning("Error parsing " +
-						"Content-Length");
-					++fail;
-					continue;
-				}
-				byte[] img = null;
-				try {
-					img = AbstractEncoder.readImage(in, length);
-				}
-				catch (IOException e) {
-					logger.warning(e.getMessage());
-					++fail;
-					continue;
-				}
-				try {
-					in.close();
-				}
-				catch (IOException e) {
-					// NOP
-				}
-				conn.disconnect();
-				if (img == null || img.length < 1) {
-					++fail;
-					continue;
-				}
-				setLatestImage(img);
+	/** Set once the source has stopped */
+	private final AtomicBoolean stopped = new AtomicBoolean();
+
+	/** Task which re-publishes the latest image */
+	private ScheduledFuture<?> notifier;
+
+	/** Polling job for this source */
+	private volatile JPEGPoller.Job job;
+
+	/** Receives fetched images.  The connection is closed after each
+	 * image (see the note above). */
+	private final EncoderClient.FetchListener listener =
+		new EncoderClient.FetchListener()
+	{
+		public void fetched(FrameBuffer fb) {
+			if (fb.getDataLength() < 1) {
+				fb.release();
+				countFailure();
+			}
+			else {
+				notifySinks(fb);
 				fail = 0;
 			}
-			logger.info("Stopping: " + this);
-			if (conn != null)
-				conn.disconnect();
+		}
+		public void failed(int status, Exception e) {
+			if (e != null)
+				logger.warning(e.getMessage());
+			else if (status > 0)
+				logger.warning("HTTP response: " + status);
+			countFailure();
+		}
+	};
+
+	/** Count a failed fetch, and stop polling after too many */
+	private void countFailure() {
+		if (++fail >= MAX_CONS_FAILS) {
+			logger.info("Stopping fetcher: " + this);
+			job.cancel();
+		}
+	}
+
+	/** Task which re-publishes the latest image (published by the
+	 * fetcher) to keep streams alive, and stops the source once
+	 * halted */
+	private class Notifier implements Runnable {
+		public void run() {
+			if (done) {
+				stop();
+				return;
+			}
+			if (!notifySinksAgain())
+				notifySinks(LoadingImage.data);
 		}
 	}
 
@@ -177,47 +121,28 @@ public class JPEGStreamDataSource extends AbstractDataSource {
 		this.fetch_period = p;
 	}
 
-	protected synchronized byte[] getLatestImage() {
-		return latest_img;
-	}
-
-	protected synchronized void setLatestImage(byte[] img) {
-		latest_img = img;
-	}
-
-	/** Start the image-fetcher thread then loop, notifying sinks */
+	/** Start polling, and the notifier task */
 	public void run() {
 		if (url == null) {
 			logger.warning("No encoder defined for this source.");
 			return;
 		}
 		logger.info("Starting: " + this);
+		job = JPEGPoller.start(url, user, password, false,
+			fetch_period, listener);
+		notifier = VideoExecutor.schedule(new Notifier(),
+			NOTIFY_PERIOD);
+		detach();
+	}
 
-		// start image-fetcher thread
-		Thread fetcher = new Fetcher();
-		fetcher.start();
-
-		// main loop
-		while (true) {
-			if (done)
-				break;
-			if (!(this.isAlive()))
-				break;
-			byte[] img = getLatestImage();
-			if (img != null && img.length > 0)
-				notifySinks(img);
-			else
-				notifySinks(LoadingImage.data);
-			try {
-				Thread.sleep(NOTIFY_PERIOD);
-			}
-			catch (InterruptedException e) {
-				halt();		// sets done
-			}
-		}
-		fetcher.interrupt();
+	/** Stop the source */
+	private void stop() {
+		if (!stopped.compareAndSet(false, true))
+			return;
+		notifier.cancel(false);
+		job.cancel();
 		logger.info("Stopping: " + this);
 		removeSinks();
+		finish();
 	}
 }
-
@@ -0,0 +1,110 @@
+/*
+ * Project: Video
+ * Copyright (C) 2015  AHMCT, University of California
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package us.mn.state.dot.video;
+
+/**
+ * A set of primitive longs, using open addressing with linear probing.
+ * Zero is tracked separately since it marks empty slots.
+ */
+final class LongHashSet {
+
+	/** Slots; zero is empty */
+	private long[] table;
+
+	/** Mask for slot indices */
+	private int mask;
+
+	/** Number of non-zero values */
+	private int count = 0;
+
+	/** Set if zero is in the set */
+	private boolean hasZero = false;
+
+	/** Create a set for an expected number of values */
+	LongHashSet(int expected) {
+		int cap = 16;
+		while(cap < expected * 2)
+			cap <<= 1;
+		table = new long[cap];
+		mask = cap - 1;
+	}
+
+	/** Get the number of values */
+	int size() {
+		return hasZero ? count + 1 : count;
+	}
+
+	/** Spread the bits of a value into a slot index */
+	static private int hash(long v) {
+		long h = v * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+
+	/** Add a value to the set */
+	void add(long v) {
+		if(v == 0) {
+			hasZero = true;
+			return;
+		}
+		if((count + 1) * 2 > table.length)
+			grow();
+		if(insert(table, mask, v))
+			count++;
+	}
+
+	/** Insert a value into a table.
+	 * @return true if it was not already present. */
+	static private boolean insert(long[] t, int m, long v) {
+		int i = hash(v) & m;
+		while(t[i] != 0) {
+			if(t[i] == v)
+				return false;
+			i = (i + 1) & m;
+		}
+		t[i] = v;
+		return true;
+	}
+
+	/** Double the table size */
+	private void grow() {
+		long[] t = new long[table.length * 2];
+		int m = t.length - 1;
+		for(long v: table) {
+			if(v != 0)
+				insert(t, m, v);
+		}
+		table = t;
+		mask = m;
+	}
+
+	/** Check if a value is in the set */
+	boolean contains(long v) {
+		if(v == 0)
+			return hasZero;
+		long[] t = table;
+		int m = mask;
+		int i = hash(v) & m;
+		while(t[i] != 0) {
+			if(t[i] == v)
+				return true;
+			i = (i + 1) & m;
+		}
+		return false;
+	}
+}
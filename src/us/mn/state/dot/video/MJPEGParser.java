@@ -0,0 +1,287 @@
+/*
+ * Project: Video
+ * Copyright (C) 2015  AHMCT, University of California
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package us.mn.state.dot.video;
+
+import java.io.IOException;
+
+/**
+ * MJPEGParser splits a multipart MJPEG byte stream into JPEG frames.
+ * It works directly on bytes in a single reusable buffer: header lines
+ * are matched in place, and frames are returned as a region of the
+ * buffer, so parsing allocates nothing per frame.  When a body part has
+ * no Content-Length header, the frame is delimited by the JPEG SOI and
+ * EOI markers instead.
+ *
+ * Data is added with prepare()/filled() (or feed()) and frames are taken
+ * with next().  A frame region is only valid until data is next added.
+ */
+public class MJPEGParser {
+
+	/** Initial size of the buffer */
+	static private final int INITIAL_SIZE = 64 * 1024;
+
+	/** Largest frame accepted */
+	static private final int MAX_FRAME = 8 * 1024 * 1024;
+
+	/** Longest header line accepted */
+	static private final int MAX_LINE = 8 * 1024;
+
+	/** Content-Length header name, in lower case */
+	static private final byte[] CONTENT_LENGTH =
+		"content-length:".getBytes();
+
+	/** JPEG marker prefix */
+	static private final int MARKER = 0xFF;
+
+	/** JPEG start of image marker */
+	static private final int SOI = 0xD8;
+
+	/** JPEG end of image marker */
+	static private final int EOI = 0xD9;
+
+	/** Buffer of stream data */
+	private byte[] buf = new byte[INITIAL_SIZE];
+
+	/** Position of the first unparsed byte */
+	private int pos = 0;
+
+	/** End of valid data in the buffer */
+	private int end = 0;
+
+	/** True when the headers of a body part have been read */
+	private boolean body = false;
+
+	/** True when a header line of the current part has been read */
+	private boolean headers = false;
+
+	/** Content length of the current part, or -1 if unknown */
+	private int length = -1;
+
+	/** Position of the SOI marker of the current part, or -1 */
+	private int soi = -1;
+
+	/** Position at which to resume scanning for a JPEG marker */
+	private int scan = 0;
+
+	/** Offset of the current frame */
+	private int frameOff = 0;
+
+	/** Length of the current frame */
+	private int frameLen = 0;
+
+	/** Get the buffer holding stream data and the current frame */
+	public byte[] getBuffer() {
+		return buf;
+	}
+
+	/** Get the offset of the current frame in the buffer */
+	public int getFrameOffset() {
+		return frameOff;
+	}
+
+	/** Get the length of the current frame */
+	public int getFrameLength() {
+		return frameLen;
+	}
+
+	/** Get the number of free bytes at the end of the buffer */
+	public int getFree() {
+		return buf.length - end;
+	}
+
+	/** Make room for at least min more bytes of data.
+	 * @return The offset at which new data should be written. */
+	public int prepare(int min) throws IOException {
+		if(buf.length - end >= min)
+			return end;
+		compact();
+		if(buf.length - end < min) {
+			int sz = Math.max(buf.length * 2, end + min);
+			if(sz > MAX_FRAME + INITIAL_SIZE)
+				throw new IOException("MJPEG frame too large");
+			byte[] b = new byte[sz];
+			System.arraycopy(buf, 0, b, 0, end);
+			buf = b;
+		}
+		return end;
+	}
+
+	/** Record that n bytes were written at the prepared offset */
+	public void filled(int n) {
+		end += n;
+	}
+
+	/** Copy data into the buffer */
+	public void feed(byte[] b, int off, int len) throws IOException {
+		int o = prepare(len);
+		System.arraycopy(b, off, buf, o, len);
+		filled(len);
+	}
+
+	/** Move unparsed data to the start of the buffer */
+	private void compact() {
+		if(pos == 0)
+			return;
+		System.arraycopy(buf, pos, buf, 0, end - pos);
+		end -= pos;
+		scan -= pos;
+		if(soi >= 0)
+			soi -= pos;
+		pos = 0;
+	}
+
+	/** Find the next frame in the buffered data.
+	 * @return true if a frame is available, false if more data is
+	 *         needed. */
+	public boolean next() throws IOException {
+		while(!body) {
+			if(!readHeaderLine())
+				return false;
+		}
+		if(length >= 0)
+			return nextSized();
+		else
+			return nextScanned();
+	}
+
+	/** Read one header line.
+	 * @return true if a line was read, false if more data is needed. */
+	private boolean readHeaderLine() throws IOException {
+		int eol = indexOf('\n', pos, end);
+		if(eol < 0) {
+			if(end - pos > MAX_LINE)
+				throw new IOException("Malformed MJPEG header");
+			return false;
+		}
+		int le = eol;
+		if(le > pos && buf[le - 1] == '\r')
+			le--;
+		if(le == pos) {
+			// a blank line ends the headers; blank lines
+			// before any header trail the previous part
+			if(headers) {
+				body = true;
+				soi = -1;
+				scan = eol + 1;
+			}
+		} else {
+			headers = true;
+			if(startsWithIgnoreCase(pos, le, CONTENT_LENGTH))
+				length = parseInt(pos + CONTENT_LENGTH.length, le);
+		}
+		pos = eol + 1;
+		return true;
+	}
+
+	/** Get the next frame of a part with a known content length */
+	private boolean nextSized() throws IOException {
+		if(length > MAX_FRAME)
+			throw new IOException("MJPEG frame too large: " + length);
+		if(end - pos < length)
+			return false;
+		frameOff = pos;
+		frameLen = length;
+		pos += length;
+		endPart();
+		return true;
+	}
+
+	/** Get the next frame of a part by scanning for JPEG markers */
+	private boolean nextScanned() throws IOException {
+		if(soi < 0) {
+			int m = indexOfMarker(SOI);
+			if(m < 0)
+				return false;
+			soi = m;
+			scan = m + 2;
+		}
+		int m = indexOfMarker(EOI);
+		if(m < 0) {
+			if(end - soi > MAX_FRAME)
+				throw new IOException("MJPEG frame too large");
+			return false;
+		}
+		frameOff = soi;
+		frameLen = m + 2 - soi;
+		pos = m + 2;
+		endPart();
+		return true;
+	}
+
+	/** Reset state at the end of a body part */
+	private void endPart() {
+		body = false;
+		headers = false;
+		length = -1;
+		soi = -1;
+		scan = pos;
+	}
+
+	/** Find a JPEG marker, starting from the scan position.  If it is
+	 * not found, the scan position is left on the last byte so a marker
+	 * split across reads is still found. */
+	private int indexOfMarker(int code) {
+		for(int i = scan; i < end - 1; i++) {
+			if((buf[i] & 0xFF) == MARKER &&
+			   (buf[i + 1] & 0xFF) == code)
+				return i;
+		}
+		scan = Math.max(scan, end - 1);
+		return -1;
+	}
+
+	/** Find a byte in the buffer */
+	private int indexOf(int b, int from, int to) {
+		for(int i = from; i < to; i++) {
+			if(buf[i] == b)
+				return i;
+		}
+		return -1;
+	}
+
+	/** Check if a region starts with a lower case ASCII prefix */
+	private boolean startsWithIgnoreCase(int from, int to, byte[] prefix) {
+		if(to - from < prefix.length)
+			return false;
+		for(int i = 0; i < prefix.length; i++) {
+			int c = buf[from + i];
+			if(c >= 'A' && c <= 'Z')
+				c += 'a' - 'A';
+			if(c != prefix[i])
+				return false;
+		}
+		return true;
+	}
+
+	/** Parse a decimal integer, ignoring surrounding white space.
+	 * @return The value, or -1 if there are no digits. */
+	private int parseInt(int from, int to) {
+		int v = -1;
+		for(int i = from; i < to; i++) {
+			int c = buf[i];
+			if(c >= '0' && c <= '9') {
+				v = (v < 0 ? 0 : v * 10) + (c - '0');
+				if(v > MAX_FRAME)
+					return MAX_FRAME + 1;
+			} else if(v >= 0 || (c != ' ' && c != '\t'))
+				break;
+		}
+		return v;
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Project: Video
+ * Copyright (C) 2015  AHMCT, University of California
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package us.mn.state.dot.video;
+
+import java.util.Properties;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The MJPEGPump is a small pool of threads which pushes frames to all
+ * AsyncMJPEGWriters.  Each writer is ticked at its own frame rate; a tick
+ * writes at most one body part and never blocks, so a few threads can
+ * serve any number of viewers.
+ */
+public class MJPEGPump {
+
+	/** Property name for the number of pump threads */
+	public static final String PROP_THREADS = "stream.async.threads";
+
+	/** Counter for naming pump threads */
+	private static final AtomicInteger count = new AtomicInteger();
+
+	/** The singleton pump */
+	private static MJPEGPump pump = null;
+
+	/** Executor running the writer ticks */
+	private final ScheduledExecutorService executor;
+
+	/** Get the pump, creating it if necessary */
+	public static synchronized MJPEGPump create(Properties p) {
+		if(pump == null)
+			pump = new MJPEGPump(p);
+		return pump;
+	}
+
+	/** Create the pump */
+	private MJPEGPump(Properties p) {
+		int n = Runtime.getRuntime().availableProcessors();
+		try {
+			n = Integer.parseInt(p.getProperty(PROP_THREADS));
+		}
+		catch(Exception e) {
+			// use the number of processors
+		}
+		executor = new ScheduledThreadPoolExecutor(Math.max(n, 1),
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "MJPEGPump-" +
+						count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	}
+
+	/** Start ticking a writer.
+	 * @param w The writer.
+	 * @param period Time (ms) between ticks.
+	 * @return The scheduled tick, to be cancelled when the writer ends. */
+	public ScheduledFuture<?> schedule(final AsyncMJPEGWriter w,
+		long period)
+	{
+		return executor.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				w.pump();
+			}
+		}, 0, period, TimeUnit.MILLISECONDS);
+	}
+}
@@ -24,79 +24,71 @@ import java.io.InputStream;
 
 /**
  * This is a wrapper around an input stream.  It can retrieve the 
- * next image in the stream.
+ * next image in the stream.  The stream is read in large chunks and
+ * parsed by an MJPEGParser, so reading a frame allocates nothing.
  * @author    Timothy Johnson
  */
 public class MJPEGReader implements VideoStream {
 
+	/** Minimum number of bytes to request from the stream per read */
+	private static final int CHUNK_SIZE = 16 * 1024;
+
 	private final InputStream stream;
 
+	private final MJPEGParser parser = new MJPEGParser();
+
 	public MJPEGReader(InputStream is)throws InstantiationException{
 		if(is==null)throw new InstantiationException(
 				"Can't create a MJPEGStream with null InputStream.");
 		stream = is;
 	}
-	
-	private String readLine() throws IOException{
-		StringBuffer buf = new StringBuffer();
-		int ch;
-		for(;;) {
-			ch = stream.read();
-			if(ch < 0) {
-				if(buf.length() == 0) {
-					return null;
-				} else {
-					break;
-				}
-			}
-			buf.append((char)ch);
-			if (ch == '\r') {
-				continue;
-			} else if (ch == '\n') {
-				break;
-			}
-        }
-		return (buf.toString());
+
+	/** Read the next frame from the stream.  The frame is left in the
+	 * frame buffer until the next call.
+	 * @return true if a frame was read, false at the end of the stream.
+	 */
+	public boolean readFrame() throws IOException {
+		while(!parser.next()){
+			int off = parser.prepare(CHUNK_SIZE);
+			int n = stream.read(parser.getBuffer(), off,
+				parser.getFree());
+			if(n < 0)
+				return false;
+			parser.filled(n);
+		}
+		return true;
+	}
+
+	/** Get the buffer holding the current frame */
+	public byte[] getFrameBuffer(){
+		return parser.getBuffer();
+	}
+
+	/** Get the offset of the current frame in the frame buffer */
+	public int getFrameOffset(){
+		return parser.getFrameOffset();
+	}
+
+	/** Get the length of the current frame */
+	public int getFrameLength(){
+		return parser.getFrameLength();
 	}
 
 	/** Get the next image in the mjpeg stream
 	 * 
-	 * @return
+	 * @return A copy of the image, or an empty array at the end of the
+	 *         stream or on error.
 	 */
 	public byte[] getImage(){
 		try{
-			int imageSize = getImageSize();
-			byte[] image = new byte[imageSize];
-			int bytesRead = 0;
-			int currentRead = 0;
-			while(bytesRead < imageSize){
-				currentRead = stream.read(image, bytesRead,
-						imageSize - bytesRead);
-				if(currentRead==-1){
-					break;
-				}else{
-					bytesRead = bytesRead + currentRead;
-				}
-			}
+			if(!readFrame())
+				return new byte[0];
+			byte[] image = new byte[getFrameLength()];
+			System.arraycopy(getFrameBuffer(), getFrameOffset(),
+				image, 0, image.length);
 			return image;
 		}catch(Exception e){
 			return new byte[0];
 		}
 	}
-
-	private int getImageSize() throws IOException{
-		String s = readLine();
-		while(s!=null){
-			if(s.toLowerCase().indexOf("content-length")>-1){
-				s = s.substring(s.indexOf(":") + 1);
-				s = s.trim();
-				//throw away an empty line after the
-				//content-length header
-				readLine();
-				return Integer.parseInt(s);
-			}
-			s = readLine();
-		}
-		return 0;
-	}
 }
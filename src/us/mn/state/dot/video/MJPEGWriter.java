@@ -23,6 +23,13 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Calendar;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 /**
@@ -33,21 +40,44 @@ import java.util.logging.Logger;
 public class MJPEGWriter implements DataSink {
 
 	/** The maximum time a stream can run (in seconds) */
-	private static final long MAX_DURATION = 60 * 1000 * 60; // 1 hour
+	static final long MAX_DURATION = 60 * 1000 * 60; // 1 hour
 	
 	/** The maximum time to wait for more data before terminating (in seconds) */
-	private static final long DATA_TIMEOUT = 5 * 1000 ; // 5 seconds
+	static final long DATA_TIMEOUT = 5 * 1000 ; // 5 seconds
+
+	/** The maximum time a single write to the client may take (ms) */
+	static final long WRITE_TIMEOUT =
+		PropertiesContext.getIntProp("stream.write.timeout", 10 * 1000);
+
+	/** Executor checking the write deadlines of all writers */
+	static private final ScheduledThreadPoolExecutor watchdog =
+		new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "MJPEGWriteWatchdog");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+	/** Executor closing outputs whose writes are blocked.  Closing a
+	 * stuck stream may block too, so it is kept off the watchdog. */
+	static private final ExecutorService closer =
+		Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "MJPEGWriteCloser");
+				t.setDaemon(true);
+				return t;
+			}
+		});
 
-	protected boolean done = false;
+	/** Set once the output has been handed to the closer */
+	private final AtomicBoolean closing = new AtomicBoolean(false);
+
+	protected volatile boolean done = false;
 	
 	/** A counter for figuring out frame rate */
 	protected int frameCount = 0;
 	
-	private static final String CONTENT_TYPE =
-		"Content-Type: image/jpeg";
-
-	private static final String CONTENT_LENGTH = "Content-Length: ";
-	
 	/** The output stream to write the video to. */
 	private DataOutputStream out;
 
@@ -63,23 +93,31 @@ public class MJPEGWriter implements DataSink {
 
 	private Logger logger = null;
 	
-	/** The time to sleep, in milliseconds, between sending images to the client */
-	private final int sleepDuration;
+	/** Picks the frames sent to the client */
+	private final FramePacer pacer;
+
+	/** Start time of the write in progress, or 0 */
+	private volatile long writeStart = 0;
 
 	private DataSource source = null;
+
+	/** The ring of frames published by the source */
+	private final FrameRing frames;
+
+	/** Sequence number of the last frame written */
+	private long lastSeq = -1;
 	
-	private byte[] data = null;
-	
-	private StreamStatus status = StreamStatus.INITIALIZED;
+	private volatile StreamStatus status = StreamStatus.INITIALIZED;
 	
 	/** Constructor for the MJPEGWriter. */
 	public MJPEGWriter (Client c, OutputStream out,
 			DataSource source, Logger l, int maxRate){
 		logger = l;
 		client = c;
-		sleepDuration = 1000 / Math.min(maxRate, client.getRate());
+		pacer = new FramePacer(Math.min(maxRate, client.getRate()));
 		this.out = new DataOutputStream(out);
 		this.source = source;
+		frames = source.getFrameRing();
 		source.connectSink(this);
 	}
 
@@ -87,15 +125,11 @@ public class MJPEGWriter implements DataSink {
 		return status;
 	}
 
-	/** Flush the data down the sink */
-	public synchronized void flush(byte[] data){
-		this.data = data;
-	}
 
-	public synchronized byte[] getData(){
-		return data;
+	public Client getClient(){
+		return client;
 	}
-	
+
 	public String toString(){
 		if(client==null){
 			return "Uninitialized " + this.getClass().getSimpleName();
@@ -107,18 +141,28 @@ public class MJPEGWriter implements DataSink {
 	 * images have been sent. */
 	public void sendImages() {
 		status = StreamStatus.STREAMING;
+		ScheduledFuture<?> check = watchdog.scheduleWithFixedDelay(
+			new Runnable() {
+				public void run() {
+					checkWriteDeadline();
+				}
+			}, 1, 1, TimeUnit.SECONDS);
 		try{
 			while(!isDone()) {
+				// wake for each new frame; the pacer
+				// decides which ones are sent
+				frames.awaitNewer(lastSeq, DATA_TIMEOUT);
 				writeBodyPart();
-				Thread.sleep(sleepDuration);
 			}
 		}catch(IOException ioe){
-			status = StreamStatus.CLIENT_DISCONNECTED;
+			if(status != StreamStatus.SEND_TIMEOUT)
+				status = StreamStatus.CLIENT_DISCONNECTED;
 			logger.info("IOE: " + this.toString() + " is closing.");
 		}catch(InterruptedException e){
 			status = StreamStatus.INTERRUPTED;
 			logger.info("Error sending images to " + client.getHost());
 		}finally{
+			check.cancel(false);
 			source.disconnectSink(this);
 			try{
 				halt(status);
@@ -138,53 +182,62 @@ public class MJPEGWriter implements DataSink {
 		}
 		if((now-lastRateCalc) > 5000){
 			logger.fine(client.getHost() + ": " + client.getCameraName() +
-					" at " + (int)(frameCount/5) + " fps.");
+					" at " + (int)(frameCount/5) + " fps (limit " +
+					pacer.getRate() + ").");
 			frameCount = 0;
 			lastRateCalc = now;
 		}
 		return done;
 	}
 	
+	/** Close the output if a write has been blocked too long, so the
+	 * writing thread is released */
+	private void checkWriteDeadline(){
+		long ws = writeStart;
+		if(ws > 0 && System.currentTimeMillis() - ws > WRITE_TIMEOUT){
+			status = StreamStatus.SEND_TIMEOUT;
+			halt(StreamStatus.SEND_TIMEOUT);
+			if(closing.compareAndSet(false, true)){
+				closer.execute(new Runnable(){
+					public void run(){
+						try{
+							out.close();
+						}catch(IOException e){
+							// the blocked write will fail
+						}
+					}
+				});
+			}
+		}
+	}
+
 	public void halt(StreamStatus ss){
 		logger.fine(this.toString() + " terminated: " + ss.name());
 		done = true;
 	}
 	
-	/** Write a body part (a piece of a multipart response) */
-	private synchronized void writeBodyPart()throws IOException{
-		if(data==null || data.length == 0) return;
-		writeBoundary();
-		writeHeaderArea();
-		out.write('\r');
-		out.write('\n');
-		writeBodyArea();
-		//FIXME: When a client is behind a router and closes a stream, 
-		//but the router fails to close the socket to the server, the
-		//stream server thread blocks until the output is written. 
-		
-		//out.flush();
-		data = null;
-		lastPacket = Calendar.getInstance().getTimeInMillis();
+	/** Write a body part (a piece of a multipart response) using the
+	 * newest frame in the ring, if it has not been written already. */
+	private void writeBodyPart()throws IOException{
+		Frame f = frames.acquireLatest();
+		if(f == null) return;
+		try{
+			if(f.getSequence() <= lastSeq) return;
+			lastSeq = f.getSequence();
+			if(f.getDataLength() == 0) return;
+			if(!pacer.admit(f)) return;
+			// the body part is encoded once by the source and
+			// shared by every writer
+			long start = System.currentTimeMillis();
+			writeStart = start;
+			f.writePart(out);
+			writeStart = 0;
+			lastPacket = System.currentTimeMillis();
+			pacer.wrote(lastPacket - start > pacer.getInterval());
+		}finally{
+			writeStart = 0;
+			f.release();
+		}
 		frameCount++;
 	}
-	
-	private void writeBoundary() throws IOException {
-		out.write(MJPEG.BOUNDARY.getBytes());
-	}
-
-	private void writeHeaderArea() throws IOException {
-		out.write(CONTENT_TYPE.getBytes());
-		out.write('\r');
-		out.write('\n');
-		out.write(CONTENT_LENGTH.getBytes());
-		out.write(Integer.toString(data.length).getBytes());
-		out.write('\r');
-		out.write('\n');
-	}
-
-	private void writeBodyArea() throws IOException {
-		out.write(data);
-		out.write('\r');
-		out.write('\n');
-	}
 }
@@ -20,8 +20,6 @@
 package us.mn.state.dot.video;
 
 
-import java.io.InputStream;
-import java.net.HttpURLConnection;
 import java.net.URL;
 /**
  * The MultiRequestDataSource gets it's data via the HTTP protocol
@@ -31,51 +29,67 @@ import java.net.URL;
  */
 public class MultiRequestDataSource extends AbstractDataSource {
 
-	/** Constructor for the MultiRequestDataSource. */
-	public MultiRequestDataSource(Client c, URL url, String user, String pwd) {
+	/** Shortest period of time (ms) between image requests */
+	static public final int MIN_PERIOD = 100;
+
+	/** Period of time (ms) between image requests */
+	private final int period;
+
+	/** Polling job for this source */
+	private volatile JPEGPoller.Job job;
+
+	/** Constructor for the MultiRequestDataSource.
+	 * @param period Time (ms) between image requests. */
+	public MultiRequestDataSource(Client c, URL url, String user, String pwd,
+		int period)
+	{
 		super(c, null, null, url, user, pwd);
+		this.period = Math.max(MIN_PERIOD, period);
 	}
 
+	/** Receives fetched images */
+	private final EncoderClient.FetchListener listener =
+		new EncoderClient.FetchListener()
+	{
+		public void fetched(FrameBuffer fb) {
+			if(done){
+				fb.release();
+				stop();
+			}else if(fb.getDataLength() > 0){
+				notifySinks(fb);
+			}else{
+				fb.release();
+				//FIXME: Continue trying to get images even if null or empty.
+				//Pehaps a counter can keep track of contiguous failures and
+				//then break.
+			}
+		}
+		public void failed(int status, Exception e) {
+			if(e != null)
+				logger.info(e.getMessage());
+			else
+				logger.info("HTTP response: " + status );
+			stop();
+		}
+	};
+
 	/** Start the stream. */
 	public void run() {
-		HttpURLConnection conn = null;
-		InputStream in = null;
 		if(url != null){
-			try{
-				logger.fine("Starting: " + this);
-				while(!done && this.isAlive()){
-					conn = ImageFactory.createConnection(url, user, password);
-					int response = conn.getResponseCode();
-					if(response != 200){
-						logger.info("HTTP response: " + response );
-						break;
-					}
-					in = conn.getInputStream();
-					int length = Integer.parseInt(
-							conn.getHeaderField("Content-Length"));
-					byte[] img = AbstractEncoder.readImage(in, length);
-					if(img != null && img.length > 0){
-						notifySinks(img);
-					}else{
-						//FIXME: Continue trying to get images even if null or empty.
-						//Pehaps a counter can keep track of contiguous failures and
-						//then break.
-
-						//break;
-					}
-				}
-			}catch(Exception e){
-				logger.info(e.getMessage());
-			}finally{
-				logger.fine("Stopping: " + this);
-				try{
-					conn.disconnect();
-				}catch(Exception e2){
-				}
-				removeSinks();
-			}
+			logger.fine("Starting: " + this);
+			detach();
+			job = JPEGPoller.start(url, user, password, true, period,
+				listener);
 		}else{
 			logger.fine("No encoder defined for this source.");
 		}
 	}
+
+	/** Stop the source */
+	private void stop() {
+		job.cancel();
+		logger.fine("Stopping: " + this);
+		removeSinks();
+		finish();
+	}
 }
@@ -0,0 +1,200 @@
+/*
+ * Project: Video
+ * Copyright (C) 2015  AHMCT, University of California
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package us.mn.state.dot.video;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.logging.Logger;
+
+/**
+ * A ProxyDataSource relays one camera stream from a district server to
+ * every local viewer of that camera and size.  The upstream is opened
+ * with a service session, runs at the highest rate any current viewer
+ * has asked for (reopening when that changes), reconnects when it ends or fails, and lingers for a while after
+ * the last viewer leaves so that a returning viewer finds it running.
+ */
+public class ProxyDataSource extends HttpDataSource {
+
+	/** Duration (s) requested for each upstream stream */
+	static private final int UPSTREAM_DURATION = 60 * 60;
+
+	/** Initial time (ms) to wait before reconnecting after a failure */
+	static private final long MIN_BACKOFF = 1000;
+
+	/** Maximum time (ms) to wait before reconnecting */
+	static private final long MAX_BACKOFF = 30 * 1000;
+
+	/** Session ID used for the upstream stream */
+	private final long ssid;
+
+	/** Time (ms) to keep the upstream open with no viewers */
+	private final long linger;
+
+	/** Frame rate of the upstream stream */
+	private int rate;
+
+	/** Set when the last viewer has left, so the next viewer sets the
+	 * rate */
+	private boolean rateUnset = false;
+
+	/** Time the last viewer left, or -1 while there are viewers */
+	private long idleSince = -1;
+
+	/** Set when the upstream must reopen at a new rate */
+	private volatile boolean reconnect = false;
+
+	/** Time (ms) to wait before reconnecting after a failure */
+	private volatile long backoff = MIN_BACKOFF;
+
+	/** Time the upstream was last opened */
+	private volatile long connectTime = 0;
+
+	/** Create a proxy data source.
+	 * @param c The first client.
+	 * @param l Logger.
+	 * @param m Thread monitor.
+	 * @param base The district video URL.
+	 * @param ssid Session ID for the upstream stream.
+	 * @param linger Time (ms) to keep running with no viewers. */
+	public ProxyDataSource(Client c, Logger l, ThreadMonitor m, URL base,
+		long ssid, long linger)
+	{
+		super(c, l, m, base, null, null);
+		this.ssid = ssid;
+		this.linger = linger;
+		rate = c.getRate();
+	}
+
+	/** Add a sink, raising the upstream rate if it asks for more */
+	public synchronized void connectSink(DataSink sink) {
+		super.connectSink(sink);
+		if (sink == null)
+			return;
+		idleSince = -1;
+		int r = sink.getClient().getRate();
+		if (rateUnset) {
+			rateUnset = false;
+			setRate(r);
+		} else if (r > rate)
+			setRate(r);
+	}
+
+	/** Remove a sink, lowering the upstream rate if it asked for the
+	 * most */
+	public synchronized void disconnectSink(DataSink sink) {
+		super.disconnectSink(sink);
+		int r = 0;
+		for (DataSink s : getListeners())
+			r = Math.max(r, s.getClient().getRate());
+		if (r > 0 && r < rate)
+			setRate(r);
+	}
+
+	/** Reopen the upstream at a new rate */
+	private void setRate(int r) {
+		if (r == rate)
+			return;
+		logger.fine(this + " changing rate to " + r);
+		rate = r;
+		reconnect = true;
+		dropStream();
+	}
+
+	/** Keep running (at the last rate) until the linger time passes;
+	 * the next viewer sets the rate */
+	protected void noSinks() {
+		idleSince = System.currentTimeMillis();
+		rateUnset = true;
+	}
+
+	/** Open the district stream */
+	protected void stream() {
+		connect();
+	}
+
+	/** Open the district stream, or retry later */
+	private void connect() {
+		if (isLingerExpired()) {
+			stop();
+			return;
+		}
+		reconnect = false;
+		connectTime = System.currentTimeMillis();
+		try {
+			if (openStream(createStreamURL()))
+				return;
+		}
+		catch (MalformedURLException e) {
+			logger.info(this + ": " + e.getMessage());
+		}
+		retry(backoff);
+	}
+
+	/** Reconnect after the stream ends */
+	protected void streamClosed() {
+		if (reconnect) {
+			// viewers changed the rate
+			retry(0);
+			return;
+		}
+		if (System.currentTimeMillis() - connectTime > MAX_BACKOFF)
+			backoff = MIN_BACKOFF;
+		retry(backoff);
+	}
+
+	/** Connect again after a delay */
+	private void retry(long delay) {
+		if (isLingerExpired()) {
+			stop();
+			return;
+		}
+		if (delay > 0)
+			backoff = Math.min(backoff * 2, MAX_BACKOFF);
+		// connect from the scheduler, not an I/O callback
+		VideoExecutor.scheduleOnce(new Runnable() {
+			public void run() {
+				connect();
+			}
+		}, delay);
+	}
+
+	protected boolean keepReading() {
+		return !reconnect && !isLingerExpired();
+	}
+
+	/** Check if the source is done, halting it if it has had no
+	 * viewers for the linger time */
+	private synchronized boolean isLingerExpired() {
+		if (idleSince >= 0 &&
+		    System.currentTimeMillis() - idleSince > linger)
+		{
+			logger.fine(this + " has no sinks, stopping now.");
+			halt();
+		}
+		return done;
+	}
+
+	/** Create the URL of the upstream stream at the current rate */
+	private synchronized URL createStreamURL()
+		throws MalformedURLException
+	{
+		return new URL(url, DataSourceFactory.createRelativeURL(client,
+			rate, UPSTREAM_DURATION, ssid));
+	}
+}
@@ -0,0 +1,252 @@
+/*
+ * Project: Video
+ * Copyright (C) 2015  AHMCT, University of California
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package us.mn.state.dot.video;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.EnumMap;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+/**
+ * A SessionIdCache holds the valid SONAR session IDs of one district.
+ * The IDs are refreshed from the district session URL in the background;
+ * an unknown ID starts one on-demand refresh, no more often than a
+ * minimum interval, so new sessions are accepted right away without
+ * every request fetching the whole list.  Requests wait only briefly for
+ * a refresh; the fetch runs on the refresh thread.
+ */
+public class SessionIdCache {
+
+	/** Property name for the background refresh period (ms) */
+	static public final String PROP_REFRESH = "video.session.refresh";
+
+	/** Property name for the minimum time (ms) between refreshes */
+	static public final String PROP_REFRESH_MIN =
+		"video.session.refresh.min";
+
+	/** Default background refresh period (ms) */
+	static private final long DEFAULT_REFRESH = 30 * 1000;
+
+	/** Default minimum time (ms) between refreshes */
+	static private final long DEFAULT_REFRESH_MIN = 1000;
+
+	/** Longest time (ms) a request waits for an on-demand refresh */
+	static private final long MAX_WAIT = 500;
+
+	/** Number of refresh periods a set stays valid if refreshes fail */
+	static private final int MAX_MISSED = 3;
+
+	/** Session ID caches for each district */
+	static private final EnumMap<District, SessionIdCache> caches =
+		new EnumMap<District, SessionIdCache>(District.class);
+
+	/** Executor for background refreshes */
+	static private ScheduledThreadPoolExecutor executor = null;
+
+	/** Get the cache for a district, creating it if necessary.
+	 * @param d The district.
+	 * @param url The district session URL.
+	 * @param p Properties. */
+	static public synchronized SessionIdCache create(District d, URL url,
+		Properties p)
+	{
+		SessionIdCache c = caches.get(d);
+		if(c == null) {
+			c = new SessionIdCache(d, url, p);
+			caches.put(d, c);
+			if(executor == null) {
+				executor = new ScheduledThreadPoolExecutor(1,
+					new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r,
+							"SessionIdCache");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
+			final SessionIdCache sc = c;
+			executor.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					FutureTask<Boolean> f = sc.startRefresh(0);
+					// run it here if it is still queued
+					if(f != null)
+						f.run();
+				}
+			}, 0, c.refreshPeriod, TimeUnit.MILLISECONDS);
+		}
+		return c;
+	}
+
+	/** Get the cache for a district, or null */
+	static public synchronized SessionIdCache get(District d) {
+		return caches.get(d);
+	}
+
+	private final Logger logger = Logger.getLogger(Constants.LOGGER_NAME);
+
+	/** The district */
+	private final District district;
+
+	/** The district session URL */
+	private final URL url;
+
+	/** Time (ms) between background refreshes */
+	private final long refreshPeriod;
+
+	/** Minimum time (ms) between refreshes */
+	private final long refreshMin;
+
+	/** The valid session IDs */
+	private volatile LongHashSet ids = new LongHashSet(0);
+
+	/** Time of the last refresh attempt */
+	private volatile long lastAttempt = 0;
+
+	/** Time of the last successful refresh */
+	private volatile long lastSuccess = 0;
+
+	/** Refresh in progress, or null */
+	private final AtomicReference<FutureTask<Boolean>> refreshing =
+		new AtomicReference<FutureTask<Boolean>>();
+
+	private SessionIdCache(District d, URL u, Properties p) {
+		district = d;
+		url = u;
+		refreshPeriod = Long.parseLong(p.getProperty(PROP_REFRESH,
+			Long.toString(DEFAULT_REFRESH)));
+		refreshMin = Long.parseLong(p.getProperty(PROP_REFRESH_MIN,
+			Long.toString(DEFAULT_REFRESH_MIN)));
+	}
+
+	/** Check if a session ID is valid */
+	public boolean isValid(long ssid) {
+		if(isCurrent() && ids.contains(ssid))
+			return true;
+		FutureTask<Boolean> f = startRefresh(refreshMin);
+		if(f != null) {
+			try {
+				f.get(MAX_WAIT, TimeUnit.MILLISECONDS);
+			}
+			catch(TimeoutException e) {
+				// checked against the current IDs
+			}
+			catch(ExecutionException e) {
+				// checked against the current IDs
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return isCurrent() && ids.contains(ssid);
+	}
+
+	/** Check if the IDs were refreshed recently enough to be trusted */
+	private boolean isCurrent() {
+		return System.currentTimeMillis() - lastSuccess <=
+			MAX_MISSED * refreshPeriod;
+	}
+
+	/** Start a refresh on the refresh thread, unless one was attempted
+	 * within an interval.  Only one refresh runs at a time.
+	 * @return The refresh in progress, or null if none. */
+	private FutureTask<Boolean> startRefresh(long interval) {
+		FutureTask<Boolean> f = refreshing.get();
+		if(f != null)
+			return f;
+		long now = System.currentTimeMillis();
+		if(now - lastAttempt < interval)
+			return null;
+		f = new FutureTask<Boolean>(new Callable<Boolean>() {
+			public Boolean call() {
+				try {
+					return refresh();
+				}
+				finally {
+					refreshing.set(null);
+				}
+			}
+		});
+		if(!refreshing.compareAndSet(null, f))
+			return refreshing.get();
+		lastAttempt = now;
+		executor.execute(f);
+		return f;
+	}
+
+	/** Refresh the IDs from the district.
+	 * @return true on success. */
+	private boolean refresh() {
+		LongHashSet s = fetchIds();
+		if(s == null)
+			return false;
+		ids = s;
+		lastSuccess = System.currentTimeMillis();
+		return true;
+	}
+
+	/** Fetch the session IDs from the district.
+	 * @return The IDs, or null on error. */
+	private LongHashSet fetchIds() {
+		if(url == null)
+			return null;
+		try {
+			HttpURLConnection conn = ImageFactory.createConnection(url);
+			if(conn == null)
+				return null;
+			conn.setConnectTimeout(VideoThread.TIMEOUT_DIRECT);
+			conn.setReadTimeout(VideoThread.TIMEOUT_DIRECT);
+			BufferedReader reader = new BufferedReader(
+				new InputStreamReader(conn.getInputStream()));
+			try {
+				LongHashSet s = new LongHashSet(ids.size());
+				String l = reader.readLine();
+				while(l != null) {
+					try {
+						s.add(Long.parseLong(l));
+					}
+					catch(NumberFormatException nfe) {
+						//invalid ssid... ignore it!
+					}
+					l = reader.readLine();
+				}
+				return s;
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch(Exception e) {
+			logger.warning("SessionIdCache " + district + ": " +
+				e.getMessage());
+			return null;
+		}
+	}
+}
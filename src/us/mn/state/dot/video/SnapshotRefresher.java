@@ -0,0 +1,118 @@
+/*
+ * Project: Video
+ * Copyright (C) 2015  AHMCT, University of California
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package us.mn.state.dot.video;
+
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * The SnapshotRefresher keeps the images of frequently requested cache
+ * entries fresh.  It tracks the request rate of each entry, and fetches
+ * a new image for hot entries shortly before the old one expires, so
+ * their viewers never wait for the encoder.  Fetches run on the cache's
+ * bounded refresh pool, with a limit on concurrent fetches per encoder.
+ */
+public class SnapshotRefresher implements Runnable {
+
+	/** Default request rate (per second) for an entry to be hot */
+	static private final double DEFAULT_HOT_RATE = 0.5;
+
+	/** Default concurrent refreshes per encoder */
+	static private final int DEFAULT_PER_ENCODER = 2;
+
+	/** Weight of the newest sample in the smoothed request rate */
+	static private final double ALPHA = 0.25;
+
+	/** Request rate (per second) for an entry to be refreshed */
+	private final double hotRate;
+
+	/** Time (ms) before expiration to refresh a hot entry */
+	private final long lead;
+
+	/** Time (ms) between checks */
+	private final long period;
+
+	/** Concurrent refreshes allowed per encoder */
+	private final int perEncoder;
+
+	/** Refresh permits for each encoder */
+	private final ConcurrentHashMap<String, Semaphore> permits =
+		new ConcurrentHashMap<String, Semaphore>();
+
+	/** Entries to refresh */
+	private final Iterable<CacheEntry> entries;
+
+	/** Time of the last check */
+	private long lastCheck = System.currentTimeMillis();
+
+	/** Create a refresher.
+	 * @param p Properties.
+	 * @param duration Cache duration (ms).
+	 * @param e Entries to refresh. */
+	public SnapshotRefresher(Properties p, long duration,
+		Iterable<CacheEntry> e)
+	{
+		hotRate = Double.parseDouble(p.getProperty(
+			"video.cache.hot.rate", Double.toString(DEFAULT_HOT_RATE)));
+		lead = Long.parseLong(p.getProperty("video.cache.refresh.lead",
+			Long.toString(duration / 2)));
+		perEncoder = Integer.parseInt(p.getProperty(
+			"video.cache.refresh.per.encoder",
+			Integer.toString(DEFAULT_PER_ENCODER)));
+		period = Math.max(50, Math.min(lead / 2, 1000));
+		entries = e;
+	}
+
+	/** Check if refreshing is enabled */
+	public boolean isEnabled(){
+		return hotRate > 0 && lead > 0 && perEncoder > 0;
+	}
+
+	/** Get the time (ms) between checks */
+	public long getPeriod(){
+		return period;
+	}
+
+	/** Update request rates and refresh hot entries */
+	public void run(){
+		long now = System.currentTimeMillis();
+		double secs = Math.max(now - lastCheck, 1) / 1000.0;
+		lastCheck = now;
+		for(CacheEntry e: entries){
+			double r = e.takeRequests() / secs;
+			r = ALPHA * r + (1 - ALPHA) * e.getRequestRate();
+			e.setRequestRate(r);
+			if(r >= hotRate)
+				e.prefetch(lead, getPermit(e.getEncoderKey()));
+		}
+	}
+
+	/** Get the refresh permits for an encoder */
+	private Semaphore getPermit(String key){
+		Semaphore s = permits.get(key);
+		if(s == null){
+			Semaphore n = new Semaphore(perEncoder);
+			s = permits.putIfAbsent(key, n);
+			if(s == null)
+				s = n;
+		}
+		return s;
+	}
+}
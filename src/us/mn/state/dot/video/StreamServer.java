@@ -25,8 +25,11 @@ import java.util.Properties;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.xml.ws.http.HTTPException;
 
 /**
  * The <code>StreamServer</code> class is a servlet that responds to client requests for
@@ -43,6 +46,12 @@ public class StreamServer extends VideoServlet {
 	/** The DataSourceFactory that maintains the DataSources. */
 	private static DataSourceFactory dsFactory;
 
+	/** Property name to enable non-blocking stream output */
+	public static final String PROP_ASYNC = "stream.async";
+
+	/** The pump for non-blocking streams, or null if disabled */
+	private static MJPEGPump pump = null;
+
 //	private ThreadMonitor monitor = null;
 	
 	private final String HEADER_CONTENT_TYPE =
@@ -55,16 +64,28 @@ public class StreamServer extends VideoServlet {
 		ServletContext ctx = config.getServletContext();
 		Properties props =(Properties)ctx.getAttribute("properties");
 		dsFactory = DataSourceFactory.create(props, null);
+		if(Boolean.valueOf(props.getProperty(PROP_ASYNC, "false")))
+			pump = MJPEGPump.create(props);
 	}
 
 	/**
 	 * Handles the HTTP <code>GET</code> method.
-	 * @param request servlet request
 	 * @param response servlet response
 	 */
 	public void processRequest(HttpServletResponse response,
 			Client c) throws VideoException {
-		DataSource source = dsFactory.getDataSource(c);
+		processRequest(null, response, c);
+	}
+
+	/**
+	 * Handles the HTTP <code>GET</code> method.
+	 * @param request servlet request
+	 * @param response servlet response
+	 */
+	public void processRequest(HttpServletRequest request,
+			HttpServletResponse response, Client c)
+			throws VideoException {
+		DataSource source = null;
 		int sc = 200; //default status code ok
 		if(!isAuthenticated(c)){
 			sc = HttpServletResponse.SC_FORBIDDEN;
@@ -72,51 +93,93 @@ public class StreamServer extends VideoServlet {
 			sc = HttpServletResponse.SC_FORBIDDEN;
 		}else if(c.getCameraName() == null){
 			sc = HttpServletResponse.SC_NOT_FOUND;
-		}else if(source == null){
-			sc = HttpServletResponse.SC_NO_CONTENT;
+		}else{
+			try{
+				source = dsFactory.getDataSource(c);
+				if(source == null)
+					sc = HttpServletResponse.SC_NO_CONTENT;
+			}catch(HTTPException e){
+				// the camera's group is full
+				sc = e.getStatusCode();
+			}
 		}
 		response.setStatus(sc);
 		response.setContentType(HEADER_CONTENT_TYPE);
+		MJPEGWriter w = null;
+		// a source not yet started must be given back if the stream
+		// can't start, or it would keep its group resource
 		try{
 			response.flushBuffer();
+			if(sc != 200) return;
+			logger.info("streaming...");
+			if(pump != null && request != null &&
+			   request.isAsyncSupported())
+				streamVideoAsync(request, c, source);
+			else
+				w = startVideo(response, c, source);
 		}catch(IOException ioe){
+			if(source != null)
+				dsFactory.discard(source);
 			throw new VideoException("Client closed conection: "+ c.toString());
+		}catch(RuntimeException e){
+			if(source != null)
+				dsFactory.discard(source);
+			throw e;
 		}
-		if(sc != 200) return;
-		try{
-			response.flushBuffer();
-		}catch(IOException ioe){
-			throw new VideoException("Client closed conection: "+ c.toString());
-		}
-		logger.info("streaming...");
-		try{
-			streamVideo(response, c, source);
-		}catch(IOException ioe){
-			throw new VideoException(ioe.getMessage());
-		}
+		if(w != null)
+			w.sendImages();
 	}
 	
-	/** Send MJPEG stream to the client.
-	 * This method blocks until all images have been sent or an error
-	 * occurs.
+	/** Create an MJPEG stream to the client and start its source.
 	 * @param response
 	 * @param c
 	 * @param source
+	 * @return The writer; its sendImages method blocks until all
+	 * images have been sent or an error occurs.
 	 * @throws IOException
 	 */
-	private void streamVideo(HttpServletResponse response, Client c, DataSource source)
-			throws IOException {
+	private MJPEGWriter startVideo(HttpServletResponse response, Client c,
+			DataSource source) throws IOException {
 		logger.fine(c.getCameraName() + " creating client stream...");
 		MJPEGWriter w =
 			new MJPEGWriter(c, response.getOutputStream(),
 				source, logger, c.getRate());
 		//registerStream(c, w); //FIXME: broken for unauthenticated users
 		try{
-			((Thread)source).start();
+			((VideoThread)source).start();
+		}catch(IllegalThreadStateException its){
+			// do nothing... it's already been started.
+		}
+		return w;
+	}
+
+	/** Start a non-blocking MJPEG stream to the client.
+	 * This method returns immediately; the stream is written by the
+	 * MJPEGPump and the request is completed when it ends.
+	 * @param request
+	 * @param c
+	 * @param source
+	 * @throws IOException
+	 */
+	private void streamVideoAsync(HttpServletRequest request, Client c,
+		DataSource source) throws IOException
+	{
+		logger.fine(c.getCameraName() + " creating async client stream...");
+		AsyncContext ctx = request.startAsync();
+		AsyncMJPEGWriter w =
+			new AsyncMJPEGWriter(c, ctx, source, logger, c.getRate());
+		try{
+			w.start(pump);
+			((VideoThread)source).start();
 		}catch(IllegalThreadStateException its){
 			// do nothing... it's already been started.
+		}catch(IOException e){
+			w.abort();
+			throw e;
+		}catch(RuntimeException e){
+			w.abort();
+			throw e;
 		}
-		w.sendImages();
 	}
 
 	private synchronized static final void registerStream(
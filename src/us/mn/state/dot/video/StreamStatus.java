@@ -7,6 +7,7 @@ public enum StreamStatus {
 	STALE,
 	RECEIVE_TIMEOUT,
 	CLIENT_DISCONNECTED,
+	SEND_TIMEOUT,
 	SOURCE_DISCONNECTED,
 	STREAMING,
 	FINISHED;
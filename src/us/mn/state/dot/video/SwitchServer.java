@@ -32,10 +32,23 @@ import java.sql.*;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.logging.Logger;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -66,10 +79,25 @@ public final class SwitchServer extends HttpServlet {
 	public static final int TIMEOUT_CONN_MS = 3000;		// connection timeout (3 sec.)
 	public static final int TIMEOUT_READ_MS = 3000;		// read timeout (3 sec.)
 
+	// time allowed for a single command (a disconnect plus a connect)
+	static private final long TIMEOUT_CMD_MS =
+		2 * (TIMEOUT_CONN_MS + TIMEOUT_READ_MS);
+
+	// default/maximum time allowed for a whole salvo
+	static private final long DEFAULT_SALVO_TIMEOUT_MS = 10000;
+	static private final long MAX_SALVO_TIMEOUT_MS = 60000;
+
+	// default number of threads sending salvo commands
+	static private final int DEFAULT_SALVO_THREADS = 32;
+
 	// map of the current state of the decoders, keyed by decoder name
 	static final private ConcurrentHashMap<String, DecoderState> dec_map
 		= new ConcurrentHashMap<String, DecoderState>();
 
+	// camera names claimed by the decoder streaming (or switching to) them
+	static final private ConcurrentHashMap<String, String> cam_claims
+		= new ConcurrentHashMap<String, String>();
+
 	/** The GroupManager */
 	protected static GroupManager groupManager = null;
 
@@ -80,9 +108,24 @@ public final class SwitchServer extends HttpServlet {
 
 	protected DatabaseConnection tms = null;
 
+	/** Journal of decoder map changes, written to tms in the background */
+	private DecoderMapJournal journal = null;
+
+	/** Factory holding the camera catalog */
+	protected EncoderFactory encoderFactory = null;
+
 	/** The logger used to log all output for the application */
 	protected static Logger logger;
 
+	/** Time (ms) allowed for a salvo when none is requested */
+	private long salvoTimeout = DEFAULT_SALVO_TIMEOUT_MS;
+
+	/** Threads sending salvo commands to decoders */
+	private ThreadPoolExecutor salvoPool = null;
+
+	/** Thread applying decoder map changes notified by the database */
+	private ExecutorService syncer = null;
+
 
 	@Override
 	public void init(ServletConfig config) throws ServletException {
@@ -93,11 +136,64 @@ public final class SwitchServer extends HttpServlet {
 			logger = Logger.getLogger(Constants.LOGGER_NAME);
 		groupManager = (GroupManager)ctx.getAttribute("groupmanager");
 		loadConfigFromProps(props);
+		salvoTimeout = Math.min(MAX_SALVO_TIMEOUT_MS,
+			Long.parseLong(props.getProperty("switch.salvo.timeout",
+			String.valueOf(DEFAULT_SALVO_TIMEOUT_MS))));
+		int threads = Integer.parseInt(props.getProperty(
+			"switch.salvo.threads",
+			String.valueOf(DEFAULT_SALVO_THREADS)));
+		salvoPool = new ThreadPoolExecutor(threads, threads, 60,
+			TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "SwitchServer salvo");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		salvoPool.allowCoreThreadTimeOut(true);
 		tms = DatabaseConnection.create(props);
+		journal = new DecoderMapJournal(props, tms);
+		encoderFactory = EncoderFactory.getInstance(props);
 		restoreStateFromDb();
+		DatabaseListener l = DatabaseListener.create(props);
+		if (l != null) {
+			// syncing waits on busy decoders, so keep it off
+			// the listener thread
+			syncer = Executors.newSingleThreadExecutor(
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r,
+							"SwitchServer sync");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			l.addHandler(DatabaseListener.CHANNEL_DECODER_MAP,
+				new DatabaseListener.Handler() {
+					public void notified(final Set<String> dids) {
+						syncer.execute(new Runnable() {
+							public void run() {
+								syncDecoderMap(dids);
+							}
+						});
+					}
+				});
+		}
 		logger.info( "SwitchServer initialized successfully." );
 	}
 
+	@Override
+	public void destroy() {
+		if (salvoPool != null)
+			salvoPool.shutdownNow();
+		if (syncer != null)
+			syncer.shutdownNow();
+		if (journal != null)
+			journal.close();
+		super.destroy();
+	}
+
 
 	// intended to be called from a thread-safe context
 	private void loadConfigFromProps(Properties props) {
@@ -164,16 +260,34 @@ public final class SwitchServer extends HttpServlet {
 	private void restoreStateFromDb() {
 		// restore statemap from db
 		ConcurrentHashMap<String, String> tempStateMap = tms.getDecoderMap();
-logger.info("TEMPSTATEMAP SIZE == " + tempStateMap.size());
+		Map<String, String> unsaved = journal.getReplayed();
+		if ((tempStateMap == null) && !unsaved.isEmpty()) {
+			logger.severe("restoring only journaled decoder map changes");
+			tempStateMap = new ConcurrentHashMap<String, String>();
+		}
 		if (tempStateMap != null) {
+			// journaled changes never reached the db, so they are newer
+			for (String did : unsaved.keySet()) {
+				String cid = unsaved.get(did);
+				if (cid.length() > 0)
+					tempStateMap.put(did, cid);
+				else
+					tempStateMap.remove(did);
+			}
+			logger.info("TEMPSTATEMAP SIZE == " + tempStateMap.size());
 			// request locks for restored connection state
 			for (String did : tempStateMap.keySet()) {
 				String cid = tempStateMap.get(did);
+				DecoderState d = dec_map.get(did);
+				if (d == null)
+					continue;
 				logger.info("ABOUT TO REQUEST LOCK FOR cid=" + cid + " GROUP");
 				int serial = groupManager.requestResource(cid);
 				logger.info("REQUEST [" + cid + "]: " + serial);
 				if (serial >= 0) {
-					mapDecoder(did, cid, serial);
+					// already in the db or the journal
+					d.setStreamState(serial, cid);
+					cam_claims.put(cid, did);
 				}
 				else {
 					logger.severe("failed to obtain lock for restored connection to " + cid);
@@ -185,17 +299,61 @@ logger.info("TEMPSTATEMAP SIZE == " + tempStateMap.size());
 		}
 	}
 
-	// intended to be called from a thread-safe context
-	private boolean isCameraStreamingToADecoder(String cid) {
-		if (cid == null)
-			return false;
-		for (DecoderState d : dec_map.values()) {
-			if (cid.equals(d.getStreamCamera()))
-				return true;
+	// apply decoder map changes made outside this server (changes made
+	// here match the in-memory state already and are skipped)
+	private synchronized void syncDecoderMap(Set<String> dids) {
+		Set<String> names = (dids != null) ? dids : dec_map.keySet();
+		for (String did : names) {
+			DecoderState d = dec_map.get(did);
+			if (d == null)
+				continue;
+			if (!d.lockCommands(TIMEOUT_CMD_MS)) {
+				logger.warning("decoder busy, not synced: " + did);
+				continue;
+			}
+			try {
+				// the db is behind for decoders with journaled
+				// changes; otherwise (with the lock held) its row
+				// is the latest unless changed elsewhere
+				if (journal.isPending(did))
+					continue;
+				ConcurrentHashMap<String, String> row =
+					tms.getDecoderMap(did);
+				if (row != null)
+					syncDecoder(d, row.get(did));
+			}
+			finally {
+				d.unlockCommands();
+			}
 		}
-		return false;
 	}
 
+	// decoder command lock must be held
+	private void syncDecoder(DecoderState d, String cid) {
+		String did = d.getName();
+		String cur = d.isStreaming() ? d.getStreamCamera() : null;
+		if ((cid == null) ? (cur == null) : cid.equals(cur))
+			return;
+		logger.info("decoder map changed: " + did + " " + cur +
+			" -> " + cid);
+		if (cur != null) {
+			boolean relStatus = groupManager.releaseResource(
+				d.getStreamSerial().intValue());
+			logger.info("RELEASE [" + cur + "]: " + relStatus);
+			d.clearStreamState();
+			cam_claims.remove(cur, did);
+		}
+		if (cid != null) {
+			int serial = groupManager.requestResource(cid);
+			logger.info("REQUEST [" + cid + "]: " + serial);
+			if (serial >= 0) {
+				d.setStreamState(serial, cid);
+				cam_claims.put(cid, did);
+			}
+			else
+				logger.severe("failed to obtain lock for changed connection to " + cid);
+		}
+	}
 
 	/**
 	 * Handles the HTTP <code>GET</code> method.
@@ -214,6 +372,8 @@ logger.info("TEMPSTATEMAP SIZE == " + tempStateMap.size());
 		String cid  = request.getParameter("cid");		// camera id, might be null
 		String did  = request.getParameter("did");		// decoder id, might be null
 		String cmd  = request.getParameter("cmd");		// cmd, might be null
+		String map  = request.getParameter("map");		// salvo map, might be null
+		String tmo  = request.getParameter("timeout");	// salvo timeout, might be null
 
 		try {
 			t.setName("VIDEO " + servletName + " " +
@@ -228,7 +388,7 @@ logger.info("TEMPSTATEMAP SIZE == " + tempStateMap.size());
 		response.setCharacterEncoding("UTF-8");
 
 		StringBuilder outSB = new StringBuilder();
-		boolean success = handleCmd(cmd, did, cid, outSB);
+		boolean success = handleCmd(cmd, did, cid, map, tmo, outSB);
 		try {
 			OutputStream os = response.getOutputStream();
 			byte[] outBytes = outSB.toString().getBytes("UTF-8");
@@ -256,7 +416,9 @@ logger.info("TEMPSTATEMAP SIZE == " + tempStateMap.size());
 
 
 	/**
-	 * Handle a command, with optional "did" and "cid" arguments.
+	 * Handle a command, with optional "did", "cid", "map" and "timeout"
+	 * arguments.  Commands to different decoders run concurrently;
+	 * commands to the same decoder run one at a time.
 	 * <p><blockquote><pre>
 	 *     Command summary:
 	 *     CMD          ARGS       FUNCTION
@@ -268,11 +430,14 @@ logger.info("TEMPSTATEMAP SIZE == " + tempStateMap.size());
 	 *     conn         did,cid    connect decoder did to camera cid
 	 *     disccam      cid        disconnect camera cid from all decoders to which it's connected
 	 *     discdec      did        disconnect decoder did from whatever it's connected to
+	 *     salvo        map        switch many decoders at once; map is a list
+	 *                  [timeout]  of did:cid pairs (empty cid disconnects),
+	 *                             timeout the time (ms) allowed for all of them
 	 * </pre></blockquote>
-
-
 	 */
-	private synchronized boolean handleCmd(String cmd, String did, String cid, StringBuilder out) {
+	private boolean handleCmd(String cmd, String did, String cid,
+		String map, String timeout, StringBuilder out)
+	{
 		if (cmd == null)
 			return false;
 		else if ("grouputil".equals(cmd))
@@ -289,6 +454,8 @@ logger.info("TEMPSTATEMAP SIZE == " + tempStateMap.size());
 			return handleCmdDisccam(cid, out);
 		else if ("discdec".equals(cmd))
 			return handleCmdDiscdec(did, out);
+		else if ("salvo".equals(cmd))
+			return handleCmdSalvo(map, timeout, out);
 		out.append("ERROR: invalid cmd\n");
 		return false;
 	}
@@ -363,7 +530,6 @@ logger.info("TEMPSTATEMAP SIZE == " + tempStateMap.size());
 	}
 
 
-	// intended to be called from a thread-safe context
 	private boolean handleCmdConn(String did, String cid, StringBuilder out) {
 		if ((cid == null) || (did == null))
 			return false;
@@ -374,49 +540,76 @@ logger.info("TEMPSTATEMAP SIZE == " + tempStateMap.size());
 		if (dec == null)
 			return false;
 
-		// deny if the camera is already streaming to a decoder
+		long deadline = System.currentTimeMillis() + TIMEOUT_CMD_MS;
+		if (!dec.lockCommands(remaining(deadline))) {
+			out.append("Error: decoder busy.\n");
+			return false;
+		}
+		try {
+			return switchDecoder(dec, cid, deadline, out);
+		}
+		finally {
+			dec.unlockCommands();
+		}
+	}
+
+
+	// switch decoder dec to camera cid
+	// decoder command lock must be held
+	private boolean switchDecoder(DecoderState dec, String cid,
+		long deadline, StringBuilder out)
+	{
+		String did = dec.getName();
+
+		// deny if the camera is already streaming (or being switched)
+		// to a decoder
 		// (this logic was added later, which is why disccam can handle multiple disconnects)
-		if (isCameraStreamingToADecoder(cid)) {
+		String owner = cam_claims.putIfAbsent(cid, did);
+		if (owner != null) {
 			out.append("Error: "+cid+" already in use by a decoder.\n");
 			return false;
 		}
+		boolean mapped = false;
+		try {
+			// if decoder is streaming, disconnect and release
+			if (dec.isStreaming()) {
+				int curSerial = dec.getStreamSerial().intValue();
+				if (!(executeDisconnect(did, deadline))) {
+					out.append("Error requesting disconnect.\n");
+					return false;
+				}
+				boolean relStatus = groupManager.releaseResource(curSerial);
+				logger.info("RELEASE [" + curSerial + "]: " + relStatus);
+				unmapDecoder(did);
+			}
 
-		// if decoder is streaming, disconnect and release
-		if (dec.isStreaming()) {
-			int curSerial = dec.getStreamSerial().intValue();
-			if (!(executeDisconnect(did))) {
-				out.append("Error requesting disconnect.\n");
+			// request resource and, if granted, connect
+			int newSerial = groupManager.requestResource(cid);
+			logger.info("REQUEST [" + cid + "]: " + newSerial);
+			if (newSerial < 0) {
+				out.append("Error: group connection limit reached.\n");
 				return false;
 			}
-			boolean relStatus = groupManager.releaseResource(curSerial);
-			logger.info("RELEASE [" + curSerial + "]: " + relStatus);
-			unmapDecoder(did);
-		}
-
-		// request resource and, if granted, connect
-		int newSerial = groupManager.requestResource(cid);
-		logger.info("REQUEST [" + cid + "]: " + newSerial);
-		if (newSerial < 0) {
-			out.append("Error: group connection limit reached.\n");
-			return false;
+			// execute decoder connect
+			if (!(executeConnect(did, cid, deadline))) {
+				// connect failed.  release resource.
+				out.append("Error requesting connect.\n");
+				boolean relStatus = groupManager.releaseResource(newSerial);
+				logger.info("RELEASE [" + newSerial + "]: " + relStatus);
+				return false;
+			}
+			mapDecoder(did, cid, newSerial);
+			mapped = true;
+			out.append("OK\n");
+			return true;
 		}
-		// execute decoder connect
-		if (!(executeConnect(did,cid))) {
-			// connect failed.  release resource.
-			out.append("Error requesting connect.\n");
-//			int curSerial = dec.getStreamSerial().intValue();
-//			boolean relStatus = groupManager.releaseResource(curSerial);
-			boolean relStatus = groupManager.releaseResource(newSerial);
-			logger.info("RELEASE [" + newSerial + "]: " + relStatus);
-			return false;
+		finally {
+			if (!mapped)
+				cam_claims.remove(cid, did);
 		}
-		mapDecoder(did, cid, newSerial);
-		out.append("OK\n");
-		return true;
 	}
 
 
-	// intended to be called from a thread-safe context
 	private boolean handleCmdDisccam(String cid, StringBuilder out) {
 		// process disconnect request: disconnect this camera from all decoders to which it's connected
 		if (cid == null)
@@ -424,16 +617,23 @@ logger.info("TEMPSTATEMAP SIZE == " + tempStateMap.size());
 		if (!isValidCamera(cid))
 			return false;
 
+		long deadline = System.currentTimeMillis() + TIMEOUT_CMD_MS;
 		boolean foundOne = false;
 		// iterate through dec:cam map, disconnecting all decoders connected to camera cid
 		for (DecoderState d : dec_map.values()) {
-			if (!(d.isStreaming()))
+			if (!cid.equals(d.getStreamCamera()))
 				continue;
-			// check current camera c for decoder d
-			String c = d.getStreamCamera();
-			if (cid.equals(c)) {
+			if (!d.lockCommands(remaining(deadline))) {
+				out.append("Error: decoder busy.\n");
+				return false;
+			}
+			try {
+				// check current camera c for decoder d
+				String c = d.getStreamCamera();
+				if (!d.isStreaming() || !cid.equals(c))
+					continue;
 				foundOne = true;
-				if (!(executeDisconnect(d.getName()))) {
+				if (!(executeDisconnect(d.getName(), deadline))) {
 					out.append("Error requesting disconnect.\n");
 					return false;
 				}
@@ -442,6 +642,9 @@ logger.info("TEMPSTATEMAP SIZE == " + tempStateMap.size());
 				logger.info("RELEASE [" + c + "]: " + relStatus);
 				unmapDecoder(d.getName());
 			}
+			finally {
+				d.unlockCommands();
+			}
 		}
 		if (!foundOne) {
 			out.append("Camera not currently connected to a decoder.\n");
@@ -453,25 +656,40 @@ logger.info("TEMPSTATEMAP SIZE == " + tempStateMap.size());
 
 
 	// disconnect decoder did
-	// intended to be called from a thread-safe context
 	private boolean handleCmdDiscdec(String did, StringBuilder out) {
-		// design requirement: consider disconnecting a non-streaming decoder to not be an error.
-		// also, issue the command anyway in this case.
 		if (did == null)
 			return false;
 		DecoderState dec = dec_map.get(did);
 		if (dec == null)
 			return false;
+
+		long deadline = System.currentTimeMillis() + TIMEOUT_CMD_MS;
+		if (!dec.lockCommands(remaining(deadline))) {
+			out.append("Error: decoder busy.\n");
+			return false;
+		}
+		try {
+			return disconnectDecoder(dec, deadline, out);
+		}
+		finally {
+			dec.unlockCommands();
+		}
+	}
+
+
+	// decoder command lock must be held
+	private boolean disconnectDecoder(DecoderState dec, long deadline,
+		StringBuilder out)
+	{
+		// design requirement: consider disconnecting a non-streaming decoder to not be an error.
+		// also, issue the command anyway in this case.
+		String did = dec.getName();
 		boolean streamingState = dec.isStreaming();
-//		if (!streamingState)) {
-//			out.append("OK\n");
-//			return true;
-//		}
 
 		String c = dec.getStreamCamera();
 		Integer curSerial = dec.getStreamSerial();
 
-		if (!executeDisconnect(did)) {
+		if (!executeDisconnect(did, deadline)) {
 			out.append("Error requesting disconnect.\n");
 			return false;
 		}
@@ -487,7 +705,186 @@ logger.info("TEMPSTATEMAP SIZE == " + tempStateMap.size());
 	}
 
 
-	// intended to be called from a thread-safe context
+	/**
+	 * Switch many decoders at once.  Commands to the decoders are sent in
+	 * parallel and must all finish before a shared deadline.  A camera
+	 * moving between two decoders of the salvo is connected once the
+	 * decoder it leaves has been switched.  Decoders swapping cameras
+	 * in a cycle are untangled by first disconnecting one of them.
+	 * @param map Comma-separated did:cid pairs (empty cid to disconnect).
+	 * @param timeout Time (ms) allowed for the salvo; may be null.
+	 */
+	private boolean handleCmdSalvo(String map, String timeout,
+		StringBuilder out)
+	{
+		if (map == null)
+			return false;
+		long ms = salvoTimeout;
+		if (timeout != null) {
+			try {
+				ms = Long.parseLong(timeout.trim());
+			}
+			catch (NumberFormatException e) {
+				return false;
+			}
+			if (ms <= 0)
+				return false;
+			ms = Math.min(ms, MAX_SALVO_TIMEOUT_MS);
+		}
+		long deadline = System.currentTimeMillis() + ms;
+
+		// did -> requested cid ("" to disconnect), in request order
+		LinkedHashMap<String, String> req =
+			new LinkedHashMap<String, String>();
+		// did -> result text
+		HashMap<String, String> results = new HashMap<String, String>();
+		for (String p : map.split(",")) {
+			p = p.trim();
+			if (p.length() == 0)
+				continue;
+			int i = p.indexOf(':');
+			String did = ((i < 0) ? p : p.substring(0, i)).trim();
+			String cid = (i < 0) ? "" : p.substring(i + 1).trim();
+			if (req.containsKey(did)) {
+				out.append("Error: duplicate decoder " + did + ".\n");
+				return false;
+			}
+			if (!dec_map.containsKey(did))
+				results.put(did, "Error: unknown decoder.\n");
+			else if ((cid.length() > 0) && !isValidCamera(cid))
+				results.put(did, "Error: unknown camera.\n");
+			req.put(did, cid);
+		}
+		if (req.isEmpty())
+			return false;
+
+		ArrayList<String> pending = new ArrayList<String>();
+		for (String did : req.keySet()) {
+			if (!results.containsKey(did))
+				pending.add(did);
+		}
+		// each wave switches the decoders whose camera is not held by
+		// another pending decoder of this salvo
+		while (!pending.isEmpty() && (remaining(deadline) > 0)) {
+			ArrayList<String> wave = new ArrayList<String>();
+			for (String did : pending) {
+				String owner = cam_claims.get(req.get(did));
+				if ((owner == null) || owner.equals(did) ||
+				    !pending.contains(owner))
+					wave.add(did);
+			}
+			if (wave.isEmpty()) {
+				// the pending decoders swap cameras in a cycle;
+				// blank the decoder showing the first one's camera
+				String owner = cam_claims.get(
+					req.get(pending.get(0)));
+				if ((owner != null) && pending.contains(owner)) {
+					String r = salvoCommand(owner, "",
+						deadline);
+					if (!"OK\n".equals(r)) {
+						results.put(owner, r);
+						pending.remove(owner);
+					}
+				}
+				continue;
+			}
+			pending.removeAll(wave);
+			if (!runSalvoWave(wave, req, deadline, results))
+				break;
+		}
+		for (String did : pending) {
+			results.put(did, (remaining(deadline) > 0)
+				? "Error: " + req.get(did) +
+				  " already in use by a decoder.\n"
+				: "TIMEOUT\n");
+		}
+
+		int ok = 0;
+		StringBuilder sb = new StringBuilder();
+		for (String did : req.keySet()) {
+			String r = results.get(did);
+			if ((r == null) || (r.length() == 0))
+				r = "Error\n";
+			if ("OK\n".equals(r))
+				++ok;
+			sb.append(did + ":" + req.get(did) + "\t" + r);
+		}
+		out.append("SALVO\t" + ok + "/" + req.size() + "\n");
+		out.append(sb);
+		return ok == req.size();
+	}
+
+
+	// run the commands of one salvo wave in parallel, waiting no later
+	// than the deadline; returns false if the deadline passed
+	private boolean runSalvoWave(List<String> wave,
+		HashMap<String, String> req, final long deadline,
+		HashMap<String, String> results)
+	{
+		LinkedHashMap<String, Future<String>> futures =
+			new LinkedHashMap<String, Future<String>>();
+		for (final String did : wave) {
+			final String cid = req.get(did);
+			futures.put(did, salvoPool.submit(new Callable<String>() {
+				public String call() {
+					return salvoCommand(did, cid, deadline);
+				}
+			}));
+		}
+		boolean done = true;
+		for (String did : futures.keySet()) {
+			Future<String> f = futures.get(did);
+			try {
+				results.put(did, f.get(remaining(deadline),
+					TimeUnit.MILLISECONDS));
+			}
+			catch (TimeoutException e) {
+				// the command keeps running; decstat shows its outcome
+				results.put(did, "TIMEOUT\n");
+				done = false;
+			}
+			catch (ExecutionException e) {
+				logger.warning("salvo " + did + ": " + e.getCause());
+				results.put(did, "Error\n");
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				results.put(did, "TIMEOUT\n");
+				done = false;
+			}
+		}
+		return done;
+	}
+
+
+	// send one salvo command to a decoder
+	private String salvoCommand(String did, String cid, long deadline) {
+		DecoderState dec = dec_map.get(did);
+		if (!dec.lockCommands(remaining(deadline)))
+			return "Error: decoder busy.\n";
+		try {
+			StringBuilder sb = new StringBuilder();
+			if (cid.length() == 0)
+				disconnectDecoder(dec, deadline, sb);
+			else if (cid.equals(dec.getStreamCamera()))
+				sb.append("OK\n");
+			else
+				switchDecoder(dec, cid, deadline, sb);
+			return sb.toString();
+		}
+		finally {
+			dec.unlockCommands();
+		}
+	}
+
+
+	// time (ms) left before a deadline
+	static private long remaining(long deadline) {
+		return Math.max(0, deadline - System.currentTimeMillis());
+	}
+
+
+	// decoder command lock must be held
 	private void mapDecoder(String did, String cid, int serial) {
 		if ((did == null) || (cid == null))
 			return;
@@ -495,30 +892,33 @@ logger.info("TEMPSTATEMAP SIZE == " + tempStateMap.size());
 		if (d == null)
 			return;
 		d.setStreamState(serial, cid);
-		tms.mapDecoder(did, cid);
+		cam_claims.put(cid, did);
+		journal.record(did, cid);
 	}
 
 
-	// intended to be called from a thread-safe context
+	// decoder command lock must be held
 	private void unmapDecoder(String did) {
 		if (did == null)
 			return;
 		DecoderState d = dec_map.get(did);
 		if (d == null)
 			return;
+		String cid = d.getStreamCamera();
 		d.clearStreamState();
-		tms.mapDecoder(did, null);
+		if (cid != null)
+			cam_claims.remove(cid, did);
+		journal.record(did, null);
 	}
 
 	private boolean isValidCamera(String cid) {
-		String type = tms.getEncoderType(cid);
-		if (type != null)
-			return true;
-		return false;
+		CameraCatalog.Camera cam =
+			encoderFactory.getCatalog().getCamera(cid);
+		return (cam != null) && (cam.encoderType != null);
 	}
 
-	// intended to be called from a thread-safe context
-	private boolean executeConnect(String did, String cid) {
+	// decoder command lock must be held
+	private boolean executeConnect(String did, String cid, long deadline) {
 
 		DecoderState d = dec_map.get(did);
 		if (d == null)
@@ -546,8 +946,11 @@ logger.info("TEMPSTATEMAP SIZE == " + tempStateMap.size());
 				+ "/axis-cgi/admin/videocontrol.cgi?action=goto&sourcename=" + srcName);
 			HttpURLConnection.setFollowRedirects(true);
 			conn = (HttpURLConnection) (url.openConnection());
-			conn.setConnectTimeout(TIMEOUT_CONN_MS);
-			conn.setReadTimeout(TIMEOUT_READ_MS);
+			int left = (int)remaining(deadline);
+			if (left <= 0)
+				return false;
+			conn.setConnectTimeout(Math.min(TIMEOUT_CONN_MS, left));
+			conn.setReadTimeout(Math.min(TIMEOUT_READ_MS, left));
 
 			if (decAuth != null) {
 				String encoded = Base64.encodeBytes(decAuth.getBytes());
@@ -596,8 +999,8 @@ logger.info("TEMPSTATEMAP SIZE == " + tempStateMap.size());
 	}
 
 
-	// intended to be called from a thread-safe context
-	private boolean executeDisconnect(String did) {
+	// decoder command lock must be held
+	private boolean executeDisconnect(String did, long deadline) {
 
 		DecoderState d = dec_map.get(did);
 		if (d == null)
@@ -621,8 +1024,11 @@ logger.info("TEMPSTATEMAP SIZE == " + tempStateMap.size());
 
 			HttpURLConnection.setFollowRedirects(true);
 			conn = (HttpURLConnection) (url.openConnection());
-			conn.setConnectTimeout(TIMEOUT_CONN_MS);
-			conn.setReadTimeout(TIMEOUT_READ_MS);
+			int left = (int)remaining(deadline);
+			if (left <= 0)
+				return false;
+			conn.setConnectTimeout(Math.min(TIMEOUT_CONN_MS, left));
+			conn.setReadTimeout(Math.min(TIMEOUT_READ_MS, left));
 
 			if (decAuth != null) {
 				String encoded = Base64.encodeBytes(decAuth.getBytes());
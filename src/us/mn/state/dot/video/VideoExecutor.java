@@ -0,0 +1,116 @@
+/*
+ * Project: Video
+ * Copyright (C) 2015  AHMCT, University of California
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package us.mn.state.dot.video;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * The VideoExecutor runs the tasks of all data sources.  Each source
+ * runs as one task, on a pooled thread or (if enabled and supported by
+ * the JVM) a virtual thread.  Short periodic work, such as re-notifying
+ * sinks, runs on a small shared scheduler instead of a thread per source.
+ */
+public final class VideoExecutor {
+
+	/** Property name to run sources on virtual threads */
+	static public final String PROP_VIRTUAL = "video.threads.virtual";
+
+	/** Property name for the number of scheduler threads */
+	static public final String PROP_SCHEDULER = "video.threads.scheduler";
+
+	/** Counter for naming threads */
+	static private final AtomicInteger count = new AtomicInteger();
+
+	/** Executor running source tasks */
+	static private final ExecutorService executor = createExecutor();
+
+	/** Scheduler running periodic tasks */
+	static private final ScheduledThreadPoolExecutor scheduler =
+		new ScheduledThreadPoolExecutor(Math.max(1,
+		PropertiesContext.getIntProp(PROP_SCHEDULER, 2)),
+		new Factory("VideoScheduler-"));
+
+	/** Factory for named daemon threads */
+	static private final class Factory implements ThreadFactory {
+		private final String prefix;
+		Factory(String p) {
+			prefix = p;
+		}
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+	/** Create the executor for source tasks */
+	static private ExecutorService createExecutor() {
+		if(Boolean.valueOf(PropertiesContext.props.getProperty(
+			PROP_VIRTUAL, "false")))
+		{
+			try {
+				// Java 21+; looked up so older JVMs still run
+				Method m = Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor");
+				return (ExecutorService)m.invoke(null);
+			}
+			catch(Exception e) {
+				Logger.getLogger(Constants.LOGGER_NAME).warning(
+					"Virtual threads not available: " + e);
+			}
+		}
+		return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60,
+			TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+			new Factory("VideoSource-"));
+	}
+
+	/** Don't allow instantiation */
+	private VideoExecutor() { }
+
+	/** Run a source task */
+	static public void execute(Runnable r) {
+		executor.execute(r);
+	}
+
+	/** Run a short task once, after a delay.
+	 * @param r The task, which must not block for long.
+	 * @param delay Time (ms) to wait. */
+	static public ScheduledFuture<?> scheduleOnce(Runnable r, long delay) {
+		return scheduler.schedule(r, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/** Run a short task periodically.
+	 * @param r The task, which must not block.
+	 * @param period Time (ms) between runs.
+	 * @return The scheduled task, to be cancelled when done. */
+	static public ScheduledFuture<?> schedule(Runnable r, long period) {
+		return scheduler.scheduleAtFixedRate(r, period, period,
+			TimeUnit.MILLISECONDS);
+	}
+}
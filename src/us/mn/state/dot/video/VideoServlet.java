@@ -19,17 +19,12 @@
  */
 package us.mn.state.dot.video;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Properties;
 import java.util.logging.Logger;
 
@@ -119,6 +114,12 @@ public abstract class VideoServlet extends HttpServlet {
 		logger.info("Proxy: " + proxy);
 	}
 
+	/** Release the image scaling codecs */
+	public void destroy() {
+		JPEGScaler.dispose();
+		super.destroy();
+	}
+
 	private void createDistrictURLs(Properties p){
 		for(District d : District.values()){
 			String s = null;
@@ -126,7 +127,9 @@ public abstract class VideoServlet extends HttpServlet {
 				s = p.getProperty(d.name().toLowerCase() + ".video.url");
 				districtVideoURLs.put(d, new URL(s));
 				s = p.getProperty(d.name().toLowerCase() + ".session.url");
-				districtSessionURLs.put(d, new URL(s));
+				URL u = new URL(s);
+				districtSessionURLs.put(d, u);
+				SessionIdCache.create(d, u, p);
 			}catch(MalformedURLException e){
 				System.out.println("Malformed URL: " + s);
 			}
@@ -266,34 +269,15 @@ public abstract class VideoServlet extends HttpServlet {
 		HttpServletResponse response)
 	{
 		Client c = new Client();
-		int serial = -1;
-		String cid = "";
 		try {
 			if(isDirectoryRequest(request)){
 				sendDistrictList(response);
 				return;
 			}
 			configureClient(c, request);
-			if (!proxy && isPublished(c.getCameraName())) {
-				// "gatekeeper" function
-				// TODO in future: make optional via property
-				logger.warning(groupManager.getUsageString());
-				cid = c.getCameraName();
-				serial = groupManager.requestResource(cid);
-				logger.warning("REQUEST FOR " + cid + ": " + serial);
-				logger.warning(groupManager.getUsageString());
-				if (serial >= 0) {
-					processRequest(response, c);
-				}
-				else {
-					// deny (403)
-					response.setStatus(HttpServletResponse.
-						SC_FORBIDDEN);
-				}
-			}
-			else {
-				processRequest(response, c);
-			}
+			// group admission is taken where an encoder connection
+			// is actually opened (new data sources and image fetches)
+			processRequest(request, response, c);
 		}
 		catch(Throwable th) {
 			logger.warning(c.getCameraName() + ": " + th.getMessage());
@@ -305,57 +289,34 @@ public abstract class VideoServlet extends HttpServlet {
 			}
 		}
 		finally {
+			if (request.isAsyncStarted()) {
+				// response is completed by the async writer
+				return;
+			}
 			try {
 				response.flushBuffer();
 				response.getOutputStream().close();
 			}
 			catch(Exception e2) {
 			}
-			if (serial >= 0) {
-				boolean relResult = groupManager.releaseResource(serial);
-				if (relResult == true)
-					logger.warning("RELEASE FOR " + cid +
-						": " + relResult);
-					logger.warning(groupManager.
-						getUsageString());
-			}
 		}
 	}
 
 	public abstract void processRequest(HttpServletResponse response,
 			Client c) throws Exception;
 
+	/** Process a request.  Servlets which need the request itself,
+	 * for example to start async processing, override this. */
+	public void processRequest(HttpServletRequest request,
+		HttpServletResponse response, Client c) throws Exception
+	{
+		processRequest(response, c);
+	}
+
 	/** Check to see if the client is authenticated through SONAR */
 	protected final boolean isAuthenticated(Client c){
 		if(!proxy) return true;
-		long ssid = c.getSonarSessionId();
-		List<Long> validIds = getValidSessionIds(c.getDistrict());
-		for(long validId : validIds){
-			if(ssid == validId) return true;
-		}
-		return false;
-	}
-	
-	private List<Long> getValidSessionIds(District d){
-		List<Long> ids = new LinkedList<Long>();
-		try{
-			HttpURLConnection conn = ImageFactory.createConnection(districtSessionURLs.get(d));
-			conn.setConnectTimeout(VideoThread.TIMEOUT_DIRECT);
-			conn.setReadTimeout(VideoThread.TIMEOUT_DIRECT);
-			InputStreamReader in = new InputStreamReader(conn.getInputStream());
-			BufferedReader reader = new BufferedReader(in);
-			String l = reader.readLine();
-			while(l != null){
-				try{
-					ids.add(Long.parseLong(l));
-				}catch(NumberFormatException nfe){
-					//invalid ssid... ignore it!
-				}
-				l = reader.readLine();
-			}
-		}catch(Exception e){
-			logger.warning("VideoServlet.isValidSSID: " + e.getMessage());
-		}
-		return ids;
+		SessionIdCache ids = SessionIdCache.get(c.getDistrict());
+		return ids != null && ids.isValid(c.getSonarSessionId());
 	}
 }
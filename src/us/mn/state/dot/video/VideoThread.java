@@ -20,15 +20,31 @@
 package us.mn.state.dot.video;
 
 import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * A VideoThread is a long-running task.  It keeps the start/halt
+ * lifecycle of a thread, but runs on the shared VideoExecutor rather
+ * than owning a thread of its own.
+ *
  * @author Timothy A. Johnson
  * @author Travis Swanston
  */
-public abstract class VideoThread extends Thread{
+public abstract class VideoThread implements Runnable {
+
+	/** Task states */
+	static private final int NEW = 0;
+	static private final int RUNNING = 1;
+	static private final int TERMINATED = 2;
 
 	private final Calendar startTime = Calendar.getInstance();
-	protected boolean done = false;
+	protected volatile boolean done = false;
+
+	/** Current task state */
+	private final AtomicInteger state = new AtomicInteger(NEW);
+
+	/** Set when run() hands the task off to callbacks */
+	private volatile boolean detached = false;
 
 	/** Timeout for direct URL Connections */
 	public final static int TIMEOUT_DIRECT = 5 * 1000;
@@ -46,6 +62,54 @@ public abstract class VideoThread extends Thread{
 		if(m != null) m.addThread(this);
 	}
 
+	/** Start running the task on the executor.
+	 * @throws IllegalThreadStateException if already started. */
+	public final void start(){
+		if(!state.compareAndSet(NEW, RUNNING))
+			throw new IllegalThreadStateException();
+		VideoExecutor.execute(new Runnable() {
+			public void run() {
+				try{
+					VideoThread.this.run();
+				}finally{
+					if(!detached)
+						terminate();
+				}
+			}
+		});
+	}
+
+	/** Keep the task alive after run() returns, until finish() is
+	 * called.  For tasks driven by I/O callbacks. */
+	protected final void detach(){
+		detached = true;
+	}
+
+	/** Mark a detached task as finished */
+	protected final void finish(){
+		terminate();
+	}
+
+	/** Enter the terminated state, once */
+	private void terminate(){
+		if(state.getAndSet(TERMINATED) != TERMINATED)
+			terminated();
+	}
+
+	/** Called once when the task has finished */
+	protected void terminated(){
+	}
+
+	/** Check if the task has been started and has not finished */
+	public final boolean isAlive(){
+		return state.get() == RUNNING;
+	}
+
+	/** Check if the task has finished running */
+	public final boolean isTerminated(){
+		return state.get() == TERMINATED;
+	}
+
 	public final Calendar getStartTime(){
 		return startTime;
 	}
@@ -56,6 +120,11 @@ public abstract class VideoThread extends Thread{
 		done = true;
 	}
 
+	/** Check if this thread has been halted */
+	public final boolean isDone(){
+		return done;
+	}
+
 	/** Get the age of this thread (in seconds) */
 	public int getAge(){
 		Calendar now = Calendar.getInstance();